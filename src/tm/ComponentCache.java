@@ -0,0 +1,250 @@
+// ComponentCache.java
+
+package tm;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/* An on-disk cache of the optimal matching of each strongly connected
+ * component, for rerunning a trade after a few want lists have changed.
+ * After removeImpossibleEdgesAndOrphans no edge crosses between components,
+ * so each one is solved independently, and most of them come out the same
+ * from one run to the next.
+ *
+ * An entry is keyed by a hash of its component in canonical form: the
+ * receivers sorted by name, each with its edges sorted by sender name and
+ * cost.  The entry holds, for each receiver in that order, the position of
+ * its matched edge in that order.  Any change to the component's items,
+ * wants or costs (including the priority scheme and NONTRADE-COST) changes
+ * the key, so an entry can only be found for a component it is still
+ * optimal for.
+ *
+ * Shrinking is not cached.  The edge statuses come from the prices of its
+ * solve as much as from its matching (see Graph.findEdgeStatuses), and an
+ * entry only holds the matching.
+ *
+ * The directory is kept under a size limit by deleting the least recently
+ * used entries (a hit touches the entry's modification time).  Problems
+ * with the cache never fail a solve; an entry that cannot be read or
+ * written is just a miss.
+ */
+final class ComponentCache {
+
+  // smaller components are quicker to solve than to look up
+  static final int MIN_RECEIVERS = 16;
+
+  private static final int FORMAT = 1; // part of every key
+  private static final String SUFFIX = ".match";
+
+  private final File dir;
+  private final long limit; // bytes
+
+  ComponentCache(File dir, long limit) {
+    this.dir = dir;
+    this.limit = limit;
+  }
+
+  // statistics for the report, across every lookup
+  int components, hits;
+  int receivers, receiverHits;
+
+  // the components that missed in the last lookup, to be stored once solved
+  private List< Component > pending = new ArrayList< Component >();
+
+  private static class Component {
+    Graph.Vertex[] receivers; // canonical order
+    int[][] edges;            // edges[i]: the edges of receivers[i], canonical order
+    String key;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Matches every component of the graph that has a cache entry, and
+  // remembers the others for store().  Returns the number of receivers
+  // matched.
+  int lookup(Graph graph, SolverWorkspace workspace) {
+    pending.clear();
+    int matched = 0;
+    for (List< Graph.Vertex > receivers : graph.components(workspace)) {
+      if (receivers.size() < MIN_RECEIVERS) continue;
+      Component component = canonical(graph, receivers);
+      components++;
+      this.receivers += receivers.size();
+      if (load(graph, workspace, component)) {
+        hits++;
+        receiverHits += receivers.size();
+        matched += receivers.size();
+      }
+      else pending.add(component);
+    }
+    return matched;
+  }
+
+  // Saves the matchings of the components that missed in lookup(), which
+  // must since have been solved.
+  void store(Graph graph, SolverWorkspace workspace) {
+    if (pending.isEmpty()) return;
+    dir.mkdirs();
+    for (Component component : pending) save(graph, workspace, component);
+    pending.clear();
+    trim();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private static final Comparator< Graph.Vertex > BY_NAME = new Comparator< Graph.Vertex >() {
+    public int compare(Graph.Vertex a, Graph.Vertex b) {
+      return a.name.compareTo(b.name);
+    }
+  };
+
+  private Component canonical(final Graph graph, List< Graph.Vertex > receivers) {
+    Component component = new Component();
+    component.receivers = receivers.toArray(new Graph.Vertex[receivers.size()]);
+    Arrays.sort(component.receivers, BY_NAME);
+    component.edges = new int[component.receivers.length][];
+
+    Comparator< Integer > bySender = new Comparator< Integer >() {
+      public int compare(Integer a, Integer b) {
+        int c = graph.senderOf(a).name.compareTo(graph.senderOf(b).name);
+        if (c != 0) return c;
+        long ca = graph.costOf(a), cb = graph.costOf(b);
+        return ca < cb ? -1 : ca > cb ? 1 : 0;
+      }
+    };
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      DataOutputStream data = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+        public void write(int b) {}
+      }, digest));
+      data.writeInt(FORMAT);
+      data.writeInt(component.receivers.length);
+      for (int i = 0; i < component.receivers.length; i++) {
+        Graph.Vertex receiver = component.receivers[i];
+        Integer[] edges = new Integer[receiver.degree];
+        for (int k = 0; k < receiver.degree; k++) edges[k] = graph.receiverEdge(receiver, k);
+        Arrays.sort(edges, bySender);
+
+        component.edges[i] = new int[edges.length];
+        data.writeUTF(receiver.name);
+        data.writeInt(edges.length);
+        for (int k = 0; k < edges.length; k++) {
+          component.edges[i][k] = edges[k];
+          data.writeUTF(graph.senderOf(edges[k]).name);
+          data.writeLong(graph.costOf(edges[k]));
+        }
+      }
+      data.flush();
+
+      StringBuilder key = new StringBuilder();
+      for (byte b : digest.digest()) key.append(String.format("%02x", b & 0xff));
+      component.key = key.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e); // every JVM has SHA-1
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e); // cannot happen, nothing is written
+    }
+    return component;
+  }
+
+  private File entry(Component component) {
+    return new File(dir, component.key + SUFFIX);
+  }
+
+  private boolean load(Graph graph, SolverWorkspace workspace, Component component) {
+    File file = entry(component);
+    if (!file.isFile()) return false;
+
+    int n = component.receivers.length;
+    int[] choice = new int[n];
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != n) return false;
+        for (int i = 0; i < n; i++) {
+          choice[i] = in.readInt();
+          if (choice[i] < 0 || choice[i] >= component.edges[i].length) return false;
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      return false;
+    }
+
+    // check that the choices form a perfect matching before using them
+    Set< Graph.Vertex > senders = new HashSet< Graph.Vertex >();
+    for (int i = 0; i < n; i++)
+      if (!senders.add(graph.senderOf(component.edges[i][choice[i]]))) return false;
+
+    for (int i = 0; i < n; i++) {
+      Graph.Vertex receiver = component.receivers[i];
+      int edge = component.edges[i][choice[i]];
+      workspace.setMatch(receiver, graph.senderOf(edge), graph.costOf(edge));
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  private void save(Graph graph, SolverWorkspace workspace, Component component) {
+    File file = entry(component);
+    try {
+      // write to a temporary file first, so a reader never sees half an entry
+      File temp = File.createTempFile(component.key, ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeInt(component.receivers.length);
+        for (int i = 0; i < component.receivers.length; i++) {
+          Graph.Vertex receiver = component.receivers[i];
+          int choice = 0;
+          while (graph.senderOf(component.edges[i][choice]) != workspace.match(receiver)) choice++;
+          out.writeInt(choice);
+        }
+      }
+      finally {
+        out.close();
+      }
+      file.delete();
+      if (!temp.renameTo(file)) temp.delete();
+    }
+    catch (IOException e) {
+      // leave it out of the cache
+    }
+  }
+
+  // delete the least recently used entries until the cache fits its limit
+  private void trim() {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) return;
+
+    long total = 0;
+    final long[] used = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      total += files[i].length();
+      used[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    if (total <= limit) return;
+
+    Arrays.sort(order, new Comparator< Integer >() {
+      public int compare(Integer a, Integer b) {
+        return used[a] < used[b] ? -1 : used[a] > used[b] ? 1 : 0;
+      }
+    });
+    for (int i = 0; i < order.length && total > limit; i++) {
+      long length = files[order[i]].length();
+      if (files[order[i]].delete()) total -= length;
+    }
+  }
+
+} // end ComponentCache
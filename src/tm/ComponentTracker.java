@@ -0,0 +1,255 @@
+// ComponentTracker.java
+
+package tm;
+import java.util.*;
+
+/* The strongly connected components of a want graph that is still growing,
+ * kept up to date one want at a time (see TradeFollower).  Items are
+ * numbered in the order they are added, and an edge from a to b means that
+ * a wants b.  Only the items in a component of two or more can trade, so
+ * the number of those (not counting dummies) is an upper bound on the
+ * number of trades.
+ *
+ * The components are kept in a union-find structure.  A new edge between
+ * two components closes a cycle only if the component it goes to already
+ * reaches the one it comes from, and then every component on such a path
+ * joins the two.  To find out, a forward search from the one and a backward
+ * search from the other take turns, one item at a time, each going on
+ * while it has done less work (an item and its wants), until either runs
+ * out; the edges it saw between the components it found then give the
+ * ones to join.  So the work is bounded by about twice that of the smaller
+ * side, plus the wants of one item, not by the whole graph, and neither
+ * search goes through the component the other starts from, which is often
+ * the largest.  Most new wants either stay inside a component or come from
+ * an item that nobody wants yet, which are caught before any search
+ * starts.  Items and wants are never removed, since each item has only one
+ * want list.
+ */
+final class ComponentTracker {
+
+  private int count = 0;
+  private int[] parent = new int[16];   // union-find, the root for a component
+  private int[] size = new int[16];     // items in the component, kept in the root
+  private int[] real = new int[16];     // copies of those not dummies, in the root
+  private int[] next = new int[16];     // the items of each component, as a ring
+  private int[][] out = new int[16][];  // the items each one wants
+  private int[] outCount = new int[16];
+  private int[][] in = new int[16][];   // the items that want each one
+  private int[] inCount = new int[16];
+  private boolean[] dummy = new boolean[16];
+
+  // marks for the searches
+  private int[] forward = new int[16];
+  private int[] backward = new int[16];
+  private int[] joining = new int[16];
+  private int[] first = new int[16];    // see Side.between
+  private int[] linked = new int[16];
+  private int stamp = 0;
+
+  private int tradeable = 0;  // copies of real items in components of two or more
+  private int components = 0; // components of two or more
+  private int largest = 1;
+
+  int items() { return count; }
+  int tradeable() { return tradeable; }
+  int components() { return components; }
+  int largest() { return count == 0 ? 0 : largest; }
+  boolean isDummy(int x) { return dummy[x]; }
+
+  // adds an item (with the given number of copies) with no wants, and
+  // returns its number
+  int addItem(boolean isDummy, int copies) {
+    if (count == parent.length) grow();
+    int x = count++;
+    parent[x] = x;
+    size[x] = 1;
+    real[x] = isDummy ? 0 : copies;
+    next[x] = x;
+    out[x] = new int[2];
+    in[x] = new int[2];
+    dummy[x] = isDummy;
+    return x;
+  }
+
+  private void grow() {
+    int n = 2*parent.length;
+    parent = Arrays.copyOf(parent, n);
+    size = Arrays.copyOf(size, n);
+    real = Arrays.copyOf(real, n);
+    next = Arrays.copyOf(next, n);
+    out = Arrays.copyOf(out, n);
+    outCount = Arrays.copyOf(outCount, n);
+    in = Arrays.copyOf(in, n);
+    inCount = Arrays.copyOf(inCount, n);
+    dummy = Arrays.copyOf(dummy, n);
+    forward = Arrays.copyOf(forward, n);
+    backward = Arrays.copyOf(backward, n);
+    joining = Arrays.copyOf(joining, n);
+    first = Arrays.copyOf(first, n);
+    linked = Arrays.copyOf(linked, n);
+  }
+
+  int find(int x) {
+    int root = x;
+    while (parent[root] != root) root = parent[root];
+    while (parent[x] != root) {
+      int up = parent[x];
+      parent[x] = root;
+      x = up;
+    }
+    return root;
+  }
+
+  // a wants b
+  void addWant(int a, int b) {
+    if (outCount[a] == out[a].length) out[a] = Arrays.copyOf(out[a], 2*outCount[a]);
+    out[a][outCount[a]++] = b;
+    if (inCount[b] == in[b].length) in[b] = Arrays.copyOf(in[b], 2*inCount[b]);
+    in[b][inCount[b]++] = a;
+
+    int from = find(a), to = find(b);
+    if (from == to) return;
+
+    // does to already reach from?  Most often it plainly cannot: nobody
+    // wants a new item yet, and a new want can go to an item that wants
+    // nothing yet.
+    if (size[from] == 1 && inCount[a] == 0) return;
+    if (size[to] == 1 && outCount[b] == 0) return;
+    stamp++;
+    Side forwardSide = new Side(to, from, out, outCount, forward);
+    Side backwardSide = new Side(from, to, in, inCount, backward);
+    while (!forwardSide.isDone() && !backwardSide.isDone()) {
+      if (forwardSide.work <= backwardSide.work) forwardSide.step();
+      else backwardSide.step();
+    }
+
+    // whichever search ran out found every component on its side
+    if (forwardSide.isDone()) {
+      if (forward[from] == stamp) join(forwardSide.between(from));
+    }
+    else {
+      if (backward[to] == stamp) join(backwardSide.between(to));
+    }
+  }
+
+  // One of the two searches of addWant: the components it has found, and
+  // the items of those still to go through.  Each step goes through a
+  // single item, so that the other search can take over part-way through
+  // the ring of a large component.  The far end of the new want (the start
+  // of the other search) is found but not gone through: a component on a
+  // path between the two ends cannot be reached through it, so the search
+  // has no need of its ring, which is often the largest.
+  private final class Side {
+    private final int stop;
+    private final int[][] edges;
+    private final int[] edgeCount;
+    private final int[] marks;
+    private int[] stack = new int[4]; // components found, not yet gone through
+    private int stackSize = 0;
+    private int ring = -1;            // the component being gone through
+    private int item = -1;            // its next item, or -1 if none is
+    long work = 0;
+
+    // every edge seen between two components, as the component found
+    // along it and the one gone through
+    private int[] found = new int[4];
+    private int[] via = new int[4];
+    private int edgesSeen = 0;
+
+    Side(int start, int stop, int[][] edges, int[] edgeCount, int[] marks) {
+      this.stop = stop;
+      this.edges = edges;
+      this.edgeCount = edgeCount;
+      this.marks = marks;
+      marks[start] = stamp;
+      stack[stackSize++] = start;
+    }
+
+    boolean isDone() { return item < 0 && stackSize == 0; }
+
+    void step() {
+      if (item < 0) {
+        ring = item = stack[--stackSize];
+        if (ring == stop) {
+          item = -1;
+          return;
+        }
+      }
+      int x = item;
+      work += 1 + edgeCount[x];
+      for (int k = 0; k < edgeCount[x]; k++) {
+        int d = find(edges[x][k]);
+        if (d == ring) continue;
+        if (edgesSeen == found.length) {
+          found = Arrays.copyOf(found, 2*edgesSeen);
+          via = Arrays.copyOf(via, 2*edgesSeen);
+        }
+        found[edgesSeen] = d;
+        via[edgesSeen++] = ring;
+        if (marks[d] == stamp) continue;
+        marks[d] = stamp;
+        if (stackSize == stack.length) stack = Arrays.copyOf(stack, 2*stackSize);
+        stack[stackSize++] = d;
+      }
+      item = next[x] == ring ? -1 : next[x];
+    }
+
+    // Once done, the components on a path between the two ends of the new
+    // want: those that the far end reaches back to over the edges seen.
+    List< Integer > between(int end) {
+      int[] link = new int[edgesSeen]; // the edges seen, listed by found
+      for (int i = 0; i < edgesSeen; i++) {
+        int d = found[i];
+        if (linked[d] != stamp) {
+          linked[d] = stamp;
+          first[d] = -1;
+        }
+        link[i] = first[d];
+        first[d] = i;
+      }
+      List< Integer > result = new ArrayList< Integer >();
+      int[] stack = new int[4];
+      int stackSize = 0;
+      joining[end] = stamp;
+      stack[stackSize++] = end;
+      while (stackSize > 0) {
+        int c = stack[--stackSize];
+        result.add(c);
+        if (linked[c] != stamp) continue;
+        for (int i = first[c]; i >= 0; i = link[i]) {
+          int d = via[i];
+          if (joining[d] == stamp) continue;
+          joining[d] = stamp;
+          if (stackSize == stack.length) stack = Arrays.copyOf(stack, 2*stackSize);
+          stack[stackSize++] = d;
+        }
+      }
+      return result;
+    }
+  }
+
+  // merges the components into one
+  private void join(List< Integer > roots) {
+    int root = roots.get(0);
+    for (int c : roots) {
+      if (size[c] > size[root]) root = c;
+      if (size[c] > 1) {
+        tradeable -= real[c];
+        components--;
+      }
+    }
+    for (int c : roots) {
+      if (c == root) continue;
+      parent[c] = root;
+      size[root] += size[c];
+      real[root] += real[c];
+      int tmp = next[c]; // splice the rings together
+      next[c] = next[root];
+      next[root] = tmp;
+    }
+    tradeable += real[root];
+    components++;
+    largest = Math.max(largest, size[root]);
+  }
+
+} // end ComponentTracker
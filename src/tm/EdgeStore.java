@@ -0,0 +1,322 @@
+// Storage for the edges of a frozen graph
+
+package tm;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/* Every edge has an id in 0..size()-1 and four columns: the item ids of its
+ * receiver and sender (see Graph.Vertex.id), its cost and its status.  The
+ * edges of each vertex are a run of slots in receiverSlot/senderSlot holding
+ * edge ids (see Graph.Vertex.firstSlot).
+ *
+ * These, and the IntColumns a solve keeps alongside them, are the only
+ * structures that grow with the number of edges, so the DIRECT and MAPPED
+ * kinds keep them off the Java heap, in direct buffers or in buffers
+ * mapped from a temporary file.  Then a trade whose edges do not fit in
+ * the heap can still be solved with only vertex-level state on it.
+ */
+abstract class EdgeStore {
+
+  static enum Kind { HEAP, DIRECT, MAPPED }
+
+  static EdgeStore create(Kind kind, int size) {
+    if (kind == Kind.HEAP) return new ArrayStore(size);
+    try {
+      return new BufferStore(size, kind == Kind.MAPPED);
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Cannot create " + kind + " edge store: " + e.getMessage(), e);
+    }
+  }
+
+  abstract int size();
+
+  // initialize an edge, with status 0 (UNKNOWN)
+  abstract void setEdge(int edge, int receiver, int sender, long cost);
+
+  abstract int receiver(int edge);
+  abstract int sender(int edge);
+  abstract long cost(int edge);
+  abstract byte status(int edge);
+  abstract void setStatus(int edge, byte status);
+
+  abstract int receiverSlot(int slot);
+  abstract void setReceiverSlot(int slot, int edge);
+  abstract int senderSlot(int slot);
+  abstract void setSenderSlot(int slot, int edge);
+
+  // Releases the storage, deleting the file of a MAPPED store.  The store
+  // cannot be used after.
+  void close() {}
+
+  abstract Kind kind();
+
+  //////////////////////////////////////////////////////////////////////
+
+  // A column of ints, one per edge id or slot, in the same kind of storage
+  // as the store it was made for.  A solve that reorders the slots, or
+  // tracks flows along the edges, keeps its own in one (see
+  // SolverWorkspace), so that it too stays off the heap with the DIRECT
+  // and MAPPED kinds.
+  abstract static class IntColumn {
+    final Kind kind;
+
+    IntColumn(Kind kind) { this.kind = kind; }
+
+    abstract int size();
+    abstract int get(int i);
+    abstract void set(int i, int value);
+
+    // as EdgeStore.close
+    void close() {}
+  }
+
+  // a new column of this store's kind, all zeros
+  abstract IntColumn newColumn(int size);
+
+  // A column of this store's kind with room for size entries: the old one,
+  // if it will do, or else a new one (closing the old one).  The entries
+  // of a reused column are left as they were.
+  IntColumn column(IntColumn old, int size) {
+    if (old != null && old.kind == kind() && old.size() >= size) return old;
+    if (old != null) old.close();
+    return newColumn(size);
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // plain arrays on the Java heap
+  static class ArrayStore extends EdgeStore {
+    private int[] receivers, senders, receiverSlots, senderSlots;
+    private long[] costs;
+    private byte[] statuses;
+
+    ArrayStore(int size) {
+      receivers = new int[size];
+      senders = new int[size];
+      receiverSlots = new int[size];
+      senderSlots = new int[size];
+      costs = new long[size];
+      statuses = new byte[size];
+    }
+
+    int size() { return costs.length; }
+
+    void setEdge(int edge, int receiver, int sender, long cost) {
+      receivers[edge] = receiver;
+      senders[edge] = sender;
+      costs[edge] = cost;
+      statuses[edge] = 0;
+    }
+
+    int receiver(int edge) { return receivers[edge]; }
+    int sender(int edge) { return senders[edge]; }
+    long cost(int edge) { return costs[edge]; }
+    byte status(int edge) { return statuses[edge]; }
+    void setStatus(int edge, byte status) { statuses[edge] = status; }
+
+    int receiverSlot(int slot) { return receiverSlots[slot]; }
+    void setReceiverSlot(int slot, int edge) { receiverSlots[slot] = edge; }
+    int senderSlot(int slot) { return senderSlots[slot]; }
+    void setSenderSlot(int slot, int edge) { senderSlots[slot] = edge; }
+
+    Kind kind() { return Kind.HEAP; }
+    IntColumn newColumn(int size) { return new ArrayColumn(size); }
+  }
+
+  // an IntColumn in an array on the Java heap
+  static class ArrayColumn extends IntColumn {
+    private int[] values;
+
+    ArrayColumn(int size) {
+      super(Kind.HEAP);
+      values = new int[size];
+    }
+
+    int size() { return values.length; }
+    int get(int i) { return values[i]; }
+    void set(int i, int value) { values[i] = value; }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Direct or memory-mapped buffers, split into chunks of CHUNK entries
+  // because a single buffer cannot hold more than 2GB.
+  static class BufferStore extends EdgeStore {
+    static final int SHIFT = 20;
+    static final int CHUNK = 1 << SHIFT;
+    static final int MASK = CHUNK - 1;
+
+    private int size;
+    private IntBuffer[] receivers, senders, receiverSlots, senderSlots;
+    private LongBuffer[] costs;
+    private ByteBuffer[] statuses;
+
+    private Buffers buffers;
+
+    BufferStore(int size, boolean mapped) throws IOException {
+      this.size = size;
+      buffers = new Buffers(mapped);
+      try {
+        int chunks = (size + CHUNK - 1) >>> SHIFT;
+        receivers = new IntBuffer[chunks];
+        senders = new IntBuffer[chunks];
+        receiverSlots = new IntBuffer[chunks];
+        senderSlots = new IntBuffer[chunks];
+        costs = new LongBuffer[chunks];
+        statuses = new ByteBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+          int n = Math.min(CHUNK, size - (i << SHIFT));
+          receivers[i] = buffers.allocate(4L*n).asIntBuffer();
+          senders[i] = buffers.allocate(4L*n).asIntBuffer();
+          receiverSlots[i] = buffers.allocate(4L*n).asIntBuffer();
+          senderSlots[i] = buffers.allocate(4L*n).asIntBuffer();
+          costs[i] = buffers.allocate(8L*n).asLongBuffer();
+          statuses[i] = buffers.allocate(n);
+        }
+      }
+      finally {
+        buffers.finish();
+      }
+    }
+
+    Kind kind() { return buffers.kind(); }
+
+    int size() { return size; }
+
+    void setEdge(int edge, int receiver, int sender, long cost) {
+      int chunk = edge >>> SHIFT, i = edge & MASK;
+      receivers[chunk].put(i, receiver);
+      senders[chunk].put(i, sender);
+      costs[chunk].put(i, cost);
+      statuses[chunk].put(i, (byte) 0);
+    }
+
+    int receiver(int edge) { return receivers[edge >>> SHIFT].get(edge & MASK); }
+    int sender(int edge) { return senders[edge >>> SHIFT].get(edge & MASK); }
+    long cost(int edge) { return costs[edge >>> SHIFT].get(edge & MASK); }
+    byte status(int edge) { return statuses[edge >>> SHIFT].get(edge & MASK); }
+    void setStatus(int edge, byte status) { statuses[edge >>> SHIFT].put(edge & MASK, status); }
+
+    int receiverSlot(int slot) { return receiverSlots[slot >>> SHIFT].get(slot & MASK); }
+    void setReceiverSlot(int slot, int edge) { receiverSlots[slot >>> SHIFT].put(slot & MASK, edge); }
+    int senderSlot(int slot) { return senderSlots[slot >>> SHIFT].get(slot & MASK); }
+    void setSenderSlot(int slot, int edge) { senderSlots[slot >>> SHIFT].put(slot & MASK, edge); }
+
+    IntColumn newColumn(int size) {
+      try {
+        return new BufferColumn(size, kind() == Kind.MAPPED);
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Cannot create " + kind() + " edge column: " + e.getMessage(), e);
+      }
+    }
+
+    void close() {
+      receivers = senders = receiverSlots = senderSlots = null;
+      costs = null;
+      statuses = null;
+      buffers.delete();
+    }
+  }
+
+  // an IntColumn in direct or memory-mapped buffers, chunked like BufferStore
+  static class BufferColumn extends IntColumn {
+    private int size;
+    private IntBuffer[] chunks;
+    private Buffers buffers;
+
+    BufferColumn(int size, boolean mapped) throws IOException {
+      super(mapped ? Kind.MAPPED : Kind.DIRECT);
+      this.size = size;
+      buffers = new Buffers(mapped);
+      try {
+        chunks = new IntBuffer[(size + BufferStore.CHUNK - 1) >>> BufferStore.SHIFT];
+        for (int i = 0; i < chunks.length; i++) {
+          int n = Math.min(BufferStore.CHUNK, size - (i << BufferStore.SHIFT));
+          chunks[i] = buffers.allocate(4L*n).asIntBuffer();
+        }
+      }
+      finally {
+        buffers.finish();
+      }
+    }
+
+    int size() { return size; }
+    int get(int i) { return chunks[i >>> BufferStore.SHIFT].get(i & BufferStore.MASK); }
+    void set(int i, int value) { chunks[i >>> BufferStore.SHIFT].put(i & BufferStore.MASK, value); }
+
+    void close() {
+      chunks = null;
+      buffers.delete();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Allocates the buffers of a BufferStore or BufferColumn, direct or
+  // mapped from a temporary file of its own.
+  private static class Buffers {
+    private final boolean mapped;
+    private File tmp;
+    private RandomAccessFile file;       // only while mapping
+    private FileChannel channel;
+    private long position = 0;
+
+    Buffers(boolean mapped) throws IOException {
+      this.mapped = mapped;
+      if (mapped) {
+        tmp = File.createTempFile("tm-edges", ".bin");
+        tmp.deleteOnExit();
+        file = new RandomAccessFile(tmp, "rw");
+        channel = file.getChannel();
+      }
+    }
+
+    Kind kind() { return mapped ? Kind.MAPPED : Kind.DIRECT; }
+
+    ByteBuffer allocate(long bytes) throws IOException {
+      ByteBuffer buffer;
+      if (channel == null) {
+        // direct buffers are capped by -XX:MaxDirectMemorySize, which
+        // defaults to the maximum heap size, not by the memory free
+        try {
+          buffer = ByteBuffer.allocateDirect((int) bytes);
+        }
+        catch (OutOfMemoryError e) {
+          OutOfMemoryError error = new OutOfMemoryError(
+            "Out of direct memory for the edge store (raise -XX:MaxDirectMemorySize, " +
+            "or use --edge-store=mapped)");
+          error.initCause(e);
+          throw error;
+        }
+      }
+      else {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, bytes);
+        position += bytes;
+      }
+      return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    // mappings stay valid after the file is closed
+    void finish() throws IOException {
+      if (file != null) file.close();
+      file = null;
+      channel = null;
+    }
+
+    // The mappings go once the buffers are garbage collected, but the file
+    // is deleted now (the space is freed when the last mapping goes), so
+    // that the files of the stores a long-running JVM drops do not pile up
+    // until it exits.  Where a mapped file cannot be deleted, it is left
+    // for deleteOnExit.
+    void delete() {
+      if (tmp != null) {
+        tmp.delete();
+        tmp = null;
+      }
+    }
+  }
+
+} // end EdgeStore
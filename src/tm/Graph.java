@@ -1,13 +1,15 @@
 package tm;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Graph {
 
   static enum VertexType { RECEIVER, SENDER }
 
   private PrintStream out;
-  
+
   /**
    * Injecting {@code output} via constructor.
    * @param out
@@ -15,12 +17,14 @@ public class Graph {
   public Graph(PrintStream output) {
     this.out = output;
   }
-  
+
   public static class Vertex {
     String name;
     String user;
     boolean isDummy;
     VertexType type;
+    int id; // index into receiverById and senderById, shared by both twins
+    int index; // into the state of a solve: 2*id for a receiver, 2*id+1 for a sender
 
     Vertex(String name, String user, boolean isDummy, VertexType type) {
       this.name = name;
@@ -29,43 +33,113 @@ public class Graph {
       this.type = type;
     }
 
-    private HashMap<Vertex,Edge> edgeMap = new HashMap<Vertex,Edge>();
-    private List<Edge> edgeList = new ArrayList<Edge>(); // used while building, null when frozen
-    Edge[] edges; //not valid until the graph is frozen
+    void setId(int id) {
+      this.id = id;
+      index = type == VertexType.RECEIVER ? 2*id : 2*id+1;
+    }
 
-    // internal data for graph algorithms
-    private long minimumInCost = Long.MAX_VALUE; // only kept in the senders
+    // the edges of this vertex are in slots firstSlot..firstSlot+degree-1
+    // of the edge store (not valid until the graph is frozen)
+    int firstSlot;
+    int degree;
     Vertex twin;
-    private int mark = 0; // used for marking as visited in dfs and dijkstra
-    Vertex match = null;
-    long matchCost = 0;
-    private Vertex from = null;
-    private long price = 0;
-    private Heap.Entry heapEntry = null;
+
+    // Only the structure of the graph is kept here, and it only changes
+    // while the graph is frozen, shrunk and kernelized.  Everything a solve
+    // changes is in its SolverWorkspace.
+    private long minimumInCost = Long.MAX_VALUE; // only kept in the senders
+    private boolean dirty = true;  // only used for senders
     private int component = 0;
-    boolean used = false;
+    private boolean reduced = false; // match fixed by kernelize()
+
+    // An item with several interchangeable copies is one vertex pair, which
+    // findBestFlows matches to as many others as it has copies.  Each copy
+    // also has a vertex pair of its own, outside the graph, whose matches
+    // expandFlows fills in so that the trades are reported copy by copy.
+    int copies = 1;
+    Vertex[] copyVertices; // the receivers of the copies, null if just one
+  }
 
-    Vertex savedMatch = null;
-    long savedMatchCost = 0;
+  // Edges are ints, used as ids into the edge store, which holds their
+  // receivers, senders, costs and statuses (see EdgeStore).
+  EdgeStore.Kind edgeStoreKind = EdgeStore.Kind.HEAP;
+  private EdgeStore store;
+  private Vertex[] receiverById; // indexed by Vertex.id
+  private Vertex[] senderById;
+  // the receivers of the copies (see Vertex.copies), which get the ids
+  // after the last one in receiverById
+  private Vertex[] copyById = new Vertex[0];
+
+  // the workspace for the solves shrink() runs, possibly shared with other
+  // graphs solved one after another
+  SolverWorkspace workspace = new SolverWorkspace();
+
+  // Counts the changes to the structure, so that a workspace can tell when
+  // its state no longer fits (see SolverWorkspace.attach).
+  private int version = 0;
+  int version() { return version; }
+
+  int vertexCount() { return receiverById.length + copyById.length; }
+
+  // the vertex with a given Vertex.index
+  Vertex vertexAt(int index) {
+    int id = index >> 1;
+    if (id >= receiverById.length) {
+      Vertex copy = copyById[id - receiverById.length];
+      return (index & 1) == 0 ? copy : copy.twin;
+    }
+    return (index & 1) == 0 ? receiverById[id] : senderById[id];
+  }
 
-    private boolean dirty = true;  // only used for senders
+  // Releases the edge store, deleting its file if it is mapped.  Called once
+  // the graph has been solved for the last time.
+  void close() {
+    if (store != null) store.close();
+    store = null;
+  }
+
+  // A column of the edge store's kind with an entry per edge id (or slot),
+  // reusing old if it will do (see EdgeStore.column).  Its entries are
+  // not cleared.
+  EdgeStore.IntColumn edgeColumn(EdgeStore.IntColumn old) {
+    return store.column(old, store.size());
+  }
+
+  // a copy of the receiver slots, for a workspace to reorder
+  EdgeStore.IntColumn receiverSlots(EdgeStore.IntColumn old) {
+    EdgeStore.IntColumn slots = edgeColumn(old);
+    for (int i = 0; i < store.size(); i++) slots.set(i, store.receiverSlot(i));
+    return slots;
   }
 
-  public static class Edge {
-    Vertex receiver;
-    Vertex sender;
-    long cost;
-    EdgeStatus status = EdgeStatus.UNKNOWN;
+  Vertex receiverOf(int edge) { return receiverById[store.receiver(edge)]; }
+  Vertex senderOf(int edge) { return senderById[store.sender(edge)]; }
+  // the Vertex.index of the sender, without going through the Vertex
+  private int senderIndex(int edge) { return 2*store.sender(edge) + 1; }
+  long costOf(int edge) { return store.cost(edge); }
 
-    Edge(Vertex receiver,Vertex sender,long cost) {
-      assert receiver.type == VertexType.RECEIVER;
-      assert sender.type == VertexType.SENDER;
-      this.receiver = receiver;
-      this.sender = sender;
-      this.cost = cost;
-    }
+  private static final EdgeStatus[] STATUSES = EdgeStatus.values();
+  private EdgeStatus statusOf(int edge) { return STATUSES[store.status(edge)]; }
+  private void setStatus(int edge, EdgeStatus status) {
+    store.setStatus(edge, (byte) status.ordinal());
+  }
+
+  // the k-th edge of a receiver, or of a sender
+  int receiverEdge(Vertex receiver, int k) {
+    return store.receiverSlot(receiver.firstSlot + k);
+  }
+  int senderEdge(Vertex sender, int k) {
+    return store.senderSlot(sender.firstSlot + k);
+  }
 
-    private Edge() {} // hide default constructor
+  // the k-th edge of either kind of vertex
+  private int edgeAt(Vertex v, int k) {
+    if (v.type == VertexType.RECEIVER) return store.receiverSlot(v.firstSlot + k);
+    else return store.senderSlot(v.firstSlot + k);
+  }
+  private void setEdgeAt(Vertex v, int k, int edge) {
+    if (v.type == VertexType.RECEIVER) store.setReceiverSlot(v.firstSlot + k, edge);
+    else store.setSenderSlot(v.firstSlot + k, edge);
   }
 
   public Vertex getVertex(String name) {
@@ -77,10 +151,12 @@ public class Graph {
     assert !frozen;
     assert getVertex(name) == null;
     Vertex receiver = new Vertex(name,user,isDummy,VertexType.RECEIVER);
+    receiver.setId(receiverList.size());
     receiverList.add(receiver);
     nameMap.put(name,receiver);
 
     Vertex sender = new Vertex(name,user,isDummy,VertexType.SENDER);
+    sender.setId(receiver.id);
     senderList.add(sender);
     receiver.twin = sender;
     sender.twin = receiver;
@@ -88,40 +164,92 @@ public class Graph {
     return receiver;
   }
 
-  public Edge addEdge(Vertex receiver,Vertex sender,long cost) {
-    assert !frozen;
-    Edge edge = new Edge(receiver,sender,cost);
-    receiver.edgeMap.put(sender,edge);
-    sender.edgeMap.put(receiver,edge);
-    receiver.edgeList.add(edge);
-    sender.edgeList.add(edge);
-    return edge;
-  }
+  boolean frozen = false;
 
-  public Edge getEdge(Vertex receiver,Vertex sender) {
-    return receiver.edgeMap.get(sender);
+  // Freeze the graph, moving the edges into the edge store.  wants[i] holds
+  // the ids of the items wanted by the i-th vertex added (starting with its
+  // own id, for the self edge), in order, and costs[i] the cost of each of
+  // those edges.  Edges get their ids receiver by receiver, and each sender
+  // keeps its edges in that same order.  The arrays are released as they
+  // are stored.
+  void freeze(int[][] wants, long[][] costs) {
+    assert wants.length == receiverList.size();
+    beginFreeze();
+    for (int[] list : wants) countWants(list);
+    allocateEdges();
+    for (int i = 0; i < wants.length; i++) {
+      storeWants(wants[i], costs[i]);
+      wants[i] = null;
+      costs[i] = null;
+    }
+    endFreeze();
   }
 
-  boolean frozen = false;
+  // freeze, in passes, for callers that cannot hold every want list at once
+  // (see TradeMaximizer.buildGraph): beginFreeze, then countWants for each
+  // vertex in the order they were added, then allocateEdges, then
+  // storeWants for each vertex again, in the same order, with the same
+  // wants, and finally endFreeze.
+  private int[] inDegree;    // only while freezing
+  private int nextReceiver;  // only while freezing
+  private long edgeCount;    // only while freezing
 
-  void freeze() {
+  void beginFreeze() {
     assert !frozen;
-
     receivers = receiverList.toArray(new Vertex[0]);
     senders = senderList.toArray(new Vertex[0]);
+    receiverById = receivers.clone();
+    senderById = senders.clone();
     receiverList = null;
     senderList = null;
+    inDegree = new int[senders.length];
+    nextReceiver = 0;
+    edgeCount = 0;
+  }
 
-    Edge[] tmp = new Edge[0];
-    for (Vertex v : receivers) {
-      v.edges = v.edgeList.toArray(tmp);
-      v.edgeList = null;
-    }
+  void countWants(int[] wants) {
+    assert nextReceiver < receivers.length;
+    nextReceiver++;
+    edgeCount += wants.length;
+    for (int id : wants) inDegree[id]++;
+  }
+
+  void allocateEdges() {
+    assert nextReceiver == receivers.length;
+    if (edgeCount > Integer.MAX_VALUE)
+      throw new RuntimeException("Too many wants (" + edgeCount + ")");
+    store = EdgeStore.create(edgeStoreKind, (int) edgeCount);
+
+    int slot = 0;
     for (Vertex v : senders) {
-      v.edges = v.edgeList.toArray(tmp);
-      v.edgeList = null;
+      v.firstSlot = slot;
+      v.degree = 0;
+      slot += inDegree[v.id];
+    }
+    inDegree = null;
+    nextReceiver = 0;
+    edgeCount = 0;
+  }
+
+  void storeWants(int[] wants, long[] costs) {
+    Vertex receiver = receivers[nextReceiver++];
+    int edge = (int) edgeCount;
+    receiver.firstSlot = edge;
+    receiver.degree = wants.length;
+    for (int k = 0; k < wants.length; k++, edge++) {
+      Vertex sender = senderById[wants[k]];
+      store.setEdge(edge, receiver.id, sender.id, costs[k]);
+      store.setReceiverSlot(edge, edge);
+      store.setSenderSlot(sender.firstSlot + sender.degree++, edge);
     }
+    edgeCount = edge;
+  }
 
+  void endFreeze() {
+    assert nextReceiver == receivers.length && edgeCount == store.size();
+    copyById = copyList.toArray(new Vertex[0]);
+    copyList = null;
+    numberCopies();
     frozen = true;
   }
 
@@ -136,58 +264,95 @@ public class Graph {
 
   private HashMap<String,Vertex> nameMap = new HashMap<String,Vertex>();
 
-  private int timestamp = 0;
-  private void advanceTimestamp() { timestamp++; }
   private int component = 0;
 
   private List<Vertex> finished;
 
-  void visitReceivers(Vertex receiver) {
-    assert receiver.type == VertexType.RECEIVER;
-    receiver.mark = timestamp;
-    for (Edge edge : receiver.edges) {
-      Vertex v = edge.sender.twin;
-      if (v.mark != timestamp) visitReceivers(v);
+  // The dfs's are iterative, because recursion overflows the stack on large
+  // trades.  The stacks hold each vertex on the path and its next edge.
+  private Vertex[] vertexStack;
+  private int[] indexStack;
+  private boolean[] visited; // by Vertex.index
+
+  void visitReceivers(Vertex root) {
+    assert root.type == VertexType.RECEIVER;
+    int pos = 0;
+    vertexStack[0] = root;
+    indexStack[0] = 0;
+    visited[root.index] = true;
+    while (pos >= 0) {
+      Vertex receiver = vertexStack[pos];
+      int k = indexStack[pos]++;
+      if (k == receiver.degree) {
+        finished.add(receiver.twin);
+        pos--;
+        continue;
+      }
+      Vertex v = senderOf(receiverEdge(receiver, k)).twin;
+      if (!visited[v.index]) {
+        visited[v.index] = true;
+        vertexStack[++pos] = v;
+        indexStack[pos] = 0;
+      }
     }
-    finished.add(receiver.twin);
   }
-  void visitSenders(Vertex sender) {
-    assert sender.type == VertexType.SENDER;
-    sender.mark = timestamp;
-    for (Edge edge : sender.edges) {
-      Vertex v = edge.receiver.twin;
-      if (v.mark != timestamp) visitSenders(v);
+  void visitSenders(Vertex root) {
+    assert root.type == VertexType.SENDER;
+    int pos = 0;
+    vertexStack[0] = root;
+    indexStack[0] = 0;
+    visited[root.index] = true;
+    while (pos >= 0) {
+      Vertex sender = vertexStack[pos];
+      int k = indexStack[pos]++;
+      if (k == sender.degree) {
+        sender.component = sender.twin.component = component;
+        pos--;
+        continue;
+      }
+      Vertex v = receiverOf(senderEdge(sender, k)).twin;
+      if (!visited[v.index]) {
+        visited[v.index] = true;
+        vertexStack[++pos] = v;
+        indexStack[pos] = 0;
+      }
     }
-    sender.component = sender.twin.component = component;
   }
 
   void removeBadEdges(Vertex v) {
     int goodCount = 0;
-    for (Edge edge : v.edges) {
-      if (edge.receiver.component == edge.sender.component)
-        v.edges[goodCount++] = edge;
+    for (int k = 0; k < v.degree; k++) {
+      int edge = edgeAt(v, k);
+      if (receiverOf(edge).component == senderOf(edge).component)
+        setEdgeAt(v, goodCount++, edge);
       else
-        edge.sender.dirty = true;
+        senderOf(edge).dirty = true;
     }
-    v.edges = Arrays.copyOf(v.edges, goodCount);
+    v.degree = goodCount;
   }
 
   void removeImpossibleEdgesAndOrphans() {
     assert frozen;
 
-    advanceTimestamp();
+    version++;
     finished = new ArrayList<Vertex>(receivers.length);
+    vertexStack = workspace.vertexStack(receivers.length);
+    indexStack = workspace.indexStack(receivers.length);
+    visited = new boolean[2*receiverById.length];
 
     // run strongly connected components and label all the components
     for (Vertex v : receivers)
-      if (v.mark != timestamp) visitReceivers(v);
+      if (!visited[v.index]) visitReceivers(v);
     Collections.reverse(finished);
     for (Vertex v : finished) {
-      if (v.mark != timestamp) {
+      if (!visited[v.index]) {
         component++;
         visitSenders(v);
       }
     }
+    vertexStack = null;
+    indexStack = null;
+    visited = null;
 
     // now remove all edges between two different components
     for (Vertex v : receivers) removeBadEdges(v);
@@ -202,11 +367,11 @@ public class Graph {
   private void removeOrphans() {
     int rCount = 0;
     for (Vertex v : receivers) {
-      if (v.edges.length > 1 || v.edges[0].sender != v.twin) {
+      if (v.degree > 1 || senderOf(receiverEdge(v, 0)) != v.twin) {
         receivers[rCount++] = v;
       }
       else {
-        assert v.edges.length == 1;
+        assert v.degree == 1;
         orphans.add(v);
       }
     }
@@ -215,7 +380,7 @@ public class Graph {
 
     int sCount = 0;
     for (Vertex v : senders) {
-      if (v.edges.length > 1 || v.edges[0].receiver != v.twin) {
+      if (v.degree > 1 || receiverOf(senderEdge(v, 0)) != v.twin) {
         senders[sCount++] = v;
       }
     }
@@ -223,26 +388,156 @@ public class Graph {
     assert rCount == sCount;
   }
 
-  //////////////////////////////////////////////////////////////////////
+  // Lays the graph out again for locality, for COMPACT-LAYOUT.  Freezing
+  // numbers the items in input order, which scatters the neighbours of
+  // each item across receiverById, senderById and the edge store, so the
+  // searches jump all over memory.  This renumbers the items one strongly
+  // connected component after another, each in reverse Cuthill-McKee order
+  // (a breadth-first search that visits the neighbours with fewer edges
+  // first, reversed), so that neighbouring items get nearby ids, and
+  // rebuilds the edge store in that order, leaving out the edges that
+  // removeImpossibleEdgesAndOrphans has dropped.
+  //
+  // Only the ids and edge ids change.  The order of the receivers array and
+  // of each vertex's slots, which is what breaks ties (and what shuffle()
+  // permutes), stays the same, so the results are too.  Must be called
+  // after removeImpossibleEdgesAndOrphans and before kernelize.
+  boolean compactLayout = false;
+
+  void compactLayout() {
+    version++;
+    int n = receiverById.length;
+    int[] order = new int[n]; // the new ids, in order, as old ids
+    boolean[] placed = new boolean[n];
+    long[] neighbours = new long[0]; // degree and old id of each one
+    int count = 0;
+
+    for (Vertex root : receivers) {
+      if (placed[root.id]) continue;
+      int start = count;
+      order[count++] = root.id;
+      placed[root.id] = true;
+      for (int head = start; head < count; head++) {
+        Vertex receiver = receiverById[order[head]];
+        Vertex sender = receiver.twin;
+        if (neighbours.length < receiver.degree + sender.degree)
+          neighbours = new long[receiver.degree + sender.degree];
+        int m = 0;
+        for (int k = 0; k < receiver.degree; k++) {
+          Vertex v = senderOf(receiverEdge(receiver, k));
+          if (!placed[v.id]) {
+            placed[v.id] = true;
+            neighbours[m++] = ((long) (v.degree + v.twin.degree) << 32) | v.id;
+          }
+        }
+        for (int k = 0; k < sender.degree; k++) {
+          Vertex v = receiverOf(senderEdge(sender, k));
+          if (!placed[v.id]) {
+            placed[v.id] = true;
+            neighbours[m++] = ((long) (v.degree + v.twin.degree) << 32) | v.id;
+          }
+        }
+        Arrays.sort(neighbours, 0, m);
+        for (int i = 0; i < m; i++) order[count++] = (int) neighbours[i];
+      }
+      for (int i = start, j = count-1; i < j; i++, j--) {
+        int tmp = order[i];
+        order[i] = order[j];
+        order[j] = tmp;
+      }
+    }
+    // the orphans, and anything else no longer in the graph, go last
+    for (int id = 0; id < n; id++)
+      if (!placed[id]) order[count++] = id;
+    assert count == n;
+
+    Vertex[] newReceiverById = new Vertex[n];
+    Vertex[] newSenderById = new Vertex[n];
+    long size = 0;
+    for (int i = 0; i < n; i++) {
+      newReceiverById[i] = receiverById[order[i]];
+      newSenderById[i] = senderById[order[i]];
+      size += newReceiverById[i].degree;
+    }
+    // senderOf and receiverOf still work until the new store is in place,
+    // and now give the new ids
+    for (int i = 0; i < n; i++) {
+      newReceiverById[i].setId(i);
+      newSenderById[i].setId(i);
+    }
 
-  Vertex sinkFrom;
-  long sinkCost;
+    EdgeStore newStore = EdgeStore.create(edgeStoreKind, (int) size);
+    int[] newEdge = new int[store.size()];
+    int edge = 0;
+    for (Vertex receiver : newReceiverById) {
+      for (int k = 0; k < receiver.degree; k++, edge++) {
+        int e = receiverEdge(receiver, k);
+        newEdge[e] = edge;
+        newStore.setEdge(edge, receiver.id, senderOf(e).id, costOf(e));
+        newStore.setStatus(edge, store.status(e));
+        newStore.setReceiverSlot(edge, edge);
+      }
+    }
+    int slot = 0;
+    for (Vertex sender : newSenderById) {
+      int first = slot;
+      for (int k = 0; k < sender.degree; k++)
+        newStore.setSenderSlot(slot++, newEdge[senderEdge(sender, k)]);
+      sender.firstSlot = first;
+    }
+    assert slot == size;
+    edge = 0;
+    for (Vertex receiver : newReceiverById) {
+      receiver.firstSlot = edge;
+      edge += receiver.degree;
+    }
 
-  static final long INFINITY = 10000000000000000L; // 10^16
+    store.close();
+    store = newStore;
+    receiverById = newReceiverById;
+    senderById = newSenderById;
+    numberCopies();
+  }
 
-  void dijkstra() {
-    sinkFrom = null;
-    sinkCost = Long.MAX_VALUE;
+  //////////////////////////////////////////////////////////////////////
+
+  // Edge costs are at most MAX_COST: TradeMaximizer rejects NONTRADE-COST
+  // values and priorities that would go over it.  The prices and distances
+  // of a solve grow to some multiple of the largest cost, and are kept
+  // within LIMIT, so that no sum the solver works out of them can overflow
+  // a long.  A solve whose distances or prices would go past LIMIT fails
+  // (see tooLarge) instead of finding a wrong matching.  INFINITY marks the
+  // vertices a dijkstra has not reached.
+  static final long MAX_COST = 10000000000000000L; // 10^16
+  static final long LIMIT = 1L << 60;
+  static final long INFINITY = Long.MAX_VALUE;
+
+  private static IllegalStateException tooLarge(long value) {
+    return new IllegalStateException("Costs too large to solve (a distance or price of " +
+                                     value + " is over 2^60); lower NONTRADE-COST or the priorities");
+  }
 
-    Heap heap = new Heap();
+  void dijkstra(SolverWorkspace ws) {
+    ws.sinkFrom = null;
+    ws.sinkCost = Long.MAX_VALUE;
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int[] from = ws.from;
+    long[] distance = ws.distance; // kept equal to the costs in the heap
+    Heap.Entry[] heapEntry = ws.heapEntry;
+
+    Heap heap = ws.heap;
+    heap.clear();
     for (Vertex v : senders) {
-      v.from = null;
-      v.heapEntry = heap.insert(v, INFINITY);
+      from[v.index] = SolverWorkspace.NONE;
+      distance[v.index] = INFINITY;
+      heapEntry[v.index] = heap.insert(v, INFINITY);
     }
-    for (Vertex v : receivers) {
-      v.from = null;
-      long cost = v.match == null ? 0 : INFINITY;
-      v.heapEntry = heap.insert(v, cost);
+    for (Vertex v : ws.receivers) {
+      from[v.index] = SolverWorkspace.NONE;
+      long cost = match[v.index] == SolverWorkspace.NONE ? 0 : INFINITY;
+      distance[v.index] = cost;
+      heapEntry[v.index] = heap.insert(v, cost);
     }
 
     while (!heap.isEmpty()) {
@@ -250,164 +545,1314 @@ public class Graph {
       Vertex vertex = minEntry.vertex();
       long cost = minEntry.cost();
       if (cost == INFINITY) break; // everything left is unreachable
+      if (cost > LIMIT) throw tooLarge(cost);
+      int v = vertex.index;
       if (vertex.type == VertexType.RECEIVER) {
-        for (Edge e : vertex.edges) {
-          Vertex other = e.sender;
-          if (other == vertex.match) continue;
-          long c = vertex.price + e.cost - other.price;
-          assert c >= 0;
-          assert cost + c < INFINITY;
-          if (cost + c < other.heapEntry.cost()) {
-            other.heapEntry.decreaseCost(cost + c);
-            other.from = vertex;
+        // Most of a solve is spent here, so the loop only reads the edge
+        // store and the primitive arrays: the sender's index comes from its
+        // id, and its distance from the distance array rather than its heap
+        // entry, which is only touched when the distance goes down.
+        long base = cost + price[v];
+        int skip = match[v];
+        int degree = ws.activeDegree[v];
+        for (int k = 0; k < degree; k++) {
+          int e = ws.receiverEdge(vertex, k);
+          int other = senderIndex(e);
+          long d = base + costOf(e) - price[other];
+          assert other == skip || d >= cost;
+          if (d < distance[other] && other != skip) {
+            distance[other] = d;
+            heapEntry[other].decreaseCost(d);
+            from[other] = v;
           }
         }
       }
-      else if (vertex.match == null) { // unmatched sender
-        if (cost < sinkCost) {
-          sinkFrom = vertex;
-          sinkCost = cost;
+      else if (match[v] == SolverWorkspace.NONE) { // unmatched sender
+        if (cost < ws.sinkCost) {
+          ws.sinkFrom = vertex;
+          ws.sinkCost = cost;
         }
       }
       else { // matched sender
-        Vertex other = vertex.match;
-        long c = vertex.price - other.matchCost - other.price;
+        int other = match[v];
+        long c = price[v] - ws.matchCost[other] - price[other];
         assert c >= 0;
-        if (cost + c < other.heapEntry.cost()) {
-          other.heapEntry.decreaseCost(cost + c);
-          other.from = vertex;
+        if (cost + c < distance[other]) {
+          distance[other] = cost + c;
+          heapEntry[other].decreaseCost(cost + c);
+          from[other] = v;
         }
       }
     }
   } // end dijkstra
 
-  void findBestMatches() {
+  //////////////////////////////////////////////////////////////////////
+
+  // A parallel version of dijkstra, for DIJKSTRA-THREADS, using
+  // delta-stepping.  The vertices wait in buckets of distances delta wide.
+  // The lowest bucket is emptied in phases: each relaxes, in parallel, the
+  // light edges (reduced cost at most delta) of every vertex whose distance
+  // went down in the last phase and still falls in the bucket.  Then one
+  // more phase relaxes the heavy edges of every vertex that was in it.
+  //
+  // Each phase reads the distances of the vertices it relaxes before it
+  // starts, and a distance only ever goes down to the smallest value
+  // offered, so every phase ends the same way however the threads are
+  // scheduled.  The distances are the same as dijkstra's.  So are the
+  // price updates that follow.  The augmenting path is chosen
+  // deterministically among the shortest ones: each sender comes from the
+  // receiver that got its final distance in the earliest phase (then the
+  // lowest id), which can never form a loop, and the sink is the nearest
+  // unmatched sender with the lowest id.  Where several paths are equally
+  // short, this can pick a different one than dijkstra, so ties can come
+  // out differently, but the same with any number of threads.
+
+  int dijkstraThreads = 0; // 0 for the sequential dijkstra
+
+  // fewer vertices than this in a phase are relaxed on this thread
+  static final int MIN_PARALLEL_BATCH = 1024;
+
+  // delta is this fraction of the last shortest augmenting path
+  static final long DELTA_FRACTION = 16;
+
+  // a growable list of vertex indexes
+  private static class IntList {
+    int[] items = new int[16];
+    int size = 0;
+
+    void add(int item) {
+      if (size == items.length) items = Arrays.copyOf(items, 2*size);
+      items[size++] = item;
+    }
+  }
+
+  void parallelDijkstra(final SolverWorkspace ws) {
+    int n = receiverById.length;
+    if (ws.distances == null || ws.distances.length() != 2*n) {
+      ws.distances = new AtomicLongArray(2*n);
+      ws.phaseSet = new int[2*n];
+      ws.stamps = new int[2*n];
+      ws.fromKeys = new AtomicLongArray(2*n);
+    }
+    if (dijkstraThreads > 1 && ws.dijkstraPool == null)
+      ws.dijkstraPool = Executors.newFixedThreadPool(dijkstraThreads);
+    final AtomicLongArray distances = ws.distances;
+    final int[] phaseSet = ws.phaseSet;
+    final AtomicLongArray fromKeys = ws.fromKeys;
+    final int[] match = ws.match;
+    final long[] price = ws.price;
+    final long[] distance = ws.distance;
+    int[] from = ws.from;
+
+    TreeMap<Long,IntList> buckets = new TreeMap<Long,IntList>();
+    IntList roots = new IntList();
+    for (Vertex v : senders) {
+      from[v.index] = SolverWorkspace.NONE;
+      distances.set(v.index, INFINITY);
+    }
+    for (Vertex v : ws.receivers) {
+      from[v.index] = SolverWorkspace.NONE;
+      boolean unmatched = match[v.index] == SolverWorkspace.NONE;
+      distances.set(v.index, unmatched ? 0 : INFINITY);
+      phaseSet[v.index] = 0;
+      if (unmatched) roots.add(v.index);
+    }
+    if (roots.size > 0) buckets.put(0L, roots);
+
+    int phase = 0;
+    while (!buckets.isEmpty()) {
+      long bucket = buckets.firstKey();
+      if (bucket > LIMIT / ws.delta) throw tooLarge(bucket * ws.delta);
+      IntList frontier = unique(ws, buckets.remove(bucket), bucket);
+      IntList members = new IntList();
+      while (frontier.size > 0) {
+        for (int i = 0; i < frontier.size; i++) members.add(frontier.items[i]);
+        IntList changed = relaxAll(ws, frontier, true, ++phase);
+        frontier = new IntList();
+        for (int i = 0; i < changed.size; i++) {
+          int x = changed.items[i];
+          long b = distances.get(x) / ws.delta;
+          if (b == bucket) frontier.add(x);
+          else bucketFor(buckets, b).add(x);
+        }
+      }
+      IntList changed = relaxAll(ws, unique(ws, members, bucket), false, ++phase);
+      for (int i = 0; i < changed.size; i++) {
+        int x = changed.items[i];
+        bucketFor(buckets, distances.get(x) / ws.delta).add(x);
+      }
+    }
+
+    for (Vertex v : ws.receivers) distance[v.index] = distances.get(v.index);
+    for (Vertex v : senders) distance[v.index] = distances.get(v.index);
+
+    // the augmenting path
+    ws.sinkFrom = null;
+    ws.sinkCost = Long.MAX_VALUE;
+    for (Vertex v : senders) {
+      fromKeys.set(v.index, Long.MAX_VALUE);
+      long d = distance[v.index];
+      if (match[v.index] == SolverWorkspace.NONE && d < INFINITY &&
+          (d < ws.sinkCost || (d == ws.sinkCost && v.id < ws.sinkFrom.id))) {
+        ws.sinkFrom = v;
+        ws.sinkCost = d;
+      }
+    }
+    for (Vertex v : ws.receivers)
+      if (match[v.index] != SolverWorkspace.NONE && distance[v.index] < INFINITY)
+        from[v.index] = match[v.index];
+    IntList reached = new IntList();
+    for (Vertex v : ws.receivers) if (distance[v.index] < INFINITY) reached.add(v.index);
+    forEach(ws, reached, new Relaxer() {
+      public void relax(int[] items, int from, int to, long[] snapshot, IntList changed) {
+        for (int i = from; i < to; i++) {
+          Vertex receiver = receiverById[items[i] / 2];
+          int r = receiver.index;
+          long key = ((long) phaseSet[r] << 32) | receiver.id;
+          int degree = ws.activeDegree[r];
+          for (int k = 0; k < degree; k++) {
+            int e = ws.receiverEdge(receiver, k);
+            int s = senderOf(e).index;
+            if (s == match[r]) continue;
+            if (distance[r] + price[r] + costOf(e) - price[s] != distance[s]) continue;
+            if (phaseSet[r] >= phaseSet[s]) continue;
+            lowerTo(fromKeys, s, key);
+          }
+        }
+      }
+    });
+    for (Vertex v : senders) {
+      long key = fromKeys.get(v.index);
+      if (key != Long.MAX_VALUE) from[v.index] = receiverById[(int) key].index;
+    }
+  } // end parallelDijkstra
+
+  private IntList bucketFor(TreeMap<Long,IntList> buckets, long b) {
+    IntList list = buckets.get(b);
+    if (list == null) {
+      list = new IntList();
+      buckets.put(b, list);
+    }
+    return list;
+  }
+
+  // the vertices of a list still in the bucket, each once
+  private IntList unique(SolverWorkspace ws, IntList list, long bucket) {
+    IntList result = new IntList();
+    int stamp = ++ws.stamp;
+    for (int i = 0; i < list.size; i++) {
+      int x = list.items[i];
+      if (ws.stamps[x] == stamp || ws.distances.get(x) / ws.delta != bucket) continue;
+      ws.stamps[x] = stamp;
+      result.add(x);
+    }
+    return result;
+  }
+
+  private static boolean lowerTo(AtomicLongArray array, int i, long value) {
+    for (long old = array.get(i); value < old; old = array.get(i))
+      if (array.compareAndSet(i, old, value)) return true;
+    return false;
+  }
+
+  // Relaxes the light (or heavy) edges out of the listed vertices, and
+  // returns the vertices whose distances went down, each once.
+  private IntList relaxAll(final SolverWorkspace ws, IntList list, final boolean light, int phase) {
+    final AtomicLongArray distances = ws.distances;
+    final int[] match = ws.match;
+    final long[] price = ws.price;
+    final long delta = ws.delta;
+    IntList changed = forEach(ws, list, new Relaxer() {
+      public void relax(int[] items, int from, int to, long[] snapshot, IntList changed) {
+        for (int i = from; i < to; i++) {
+          long d = snapshot[i];
+          int x = items[i];
+          if (x % 2 == 0) {
+            Vertex receiver = receiverById[x / 2];
+            int degree = ws.activeDegree[x];
+            for (int k = 0; k < degree; k++) {
+              int e = ws.receiverEdge(receiver, k);
+              int s = senderOf(e).index;
+              if (s == match[x]) continue;
+              long c = price[x] + costOf(e) - price[s];
+              assert c >= 0;
+              if ((c <= delta) != light) continue;
+              if (lowerTo(distances, s, d + c)) changed.add(s);
+            }
+          }
+          else {
+            int r = match[x];
+            if (r == SolverWorkspace.NONE) continue; // the sink is found afterwards
+            long c = price[x] - ws.matchCost[r] - price[r];
+            assert c >= 0;
+            if ((c <= delta) != light) continue;
+            if (lowerTo(distances, r, d + c)) changed.add(r);
+          }
+        }
+      }
+    });
+    IntList result = new IntList();
+    int stamp = ++ws.stamp;
+    for (int i = 0; i < changed.size; i++) {
+      int x = changed.items[i];
+      if (ws.stamps[x] == stamp) continue;
+      ws.stamps[x] = stamp;
+      ws.phaseSet[x] = phase;
+      result.add(x);
+    }
+    return result;
+  }
+
+  private interface Relaxer {
+    void relax(int[] items, int from, int to, long[] snapshot, IntList changed);
+  }
+
+  // Runs the relaxer over the list in batches, on the pool if there is
+  // enough work, with the distances of the listed vertices as they were
+  // before any of it started.  Returns everything the batches added to
+  // their changed lists.
+  private IntList forEach(SolverWorkspace ws, IntList list, final Relaxer relaxer) {
+    final int[] items = list.items;
+    final long[] snapshot = new long[list.size];
+    for (int i = 0; i < list.size; i++) snapshot[i] = ws.distances.get(items[i]);
+
+    if (ws.dijkstraPool == null || list.size < MIN_PARALLEL_BATCH) {
+      IntList changed = new IntList();
+      relaxer.relax(items, 0, list.size, snapshot, changed);
+      return changed;
+    }
+
+    int batch = Math.max(MIN_PARALLEL_BATCH / 4, list.size / (4*dijkstraThreads));
+    List<Future<IntList>> futures = new ArrayList<Future<IntList>>();
+    for (int start = 0; start < list.size; start += batch) {
+      final int from = start;
+      final int to = Math.min(start + batch, list.size);
+      futures.add(ws.dijkstraPool.submit(new Callable<IntList>() {
+        public IntList call() {
+          IntList changed = new IntList();
+          relaxer.relax(items, from, to, snapshot, changed);
+          return changed;
+        }
+      }));
+    }
+    IntList changed = new IntList();
+    try {
+      for (Future<IntList> future : futures) {
+        IntList part = future.get();
+        for (int i = 0; i < part.size; i++) changed.add(part.items[i]);
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    return changed;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void findBestMatches(SolverWorkspace ws) {
     assert frozen;
+    // the cache and the workers fill in a solve that starts over, so a
+    // matching kept from shrinking is dropped in favour of them
+    if (cache != null || workers != null) ws.kept = false;
+    ws.attach(this);
+    int repaired = ws.kept ? repairMatching(ws) : -1;
+    ws.kept = false;
 
     if (hasBeenFullyShrunk) {
-      findUnweightedMatches();
+      // any perfect matching is optimal now, so a repaired one will do, as
+      // will the cache's (the workers are not worth it for the rest)
+      int matched = repaired;
+      if (repaired < 0) {
+        for (Vertex v : ws.receivers) ws.match[v.index] = SolverWorkspace.NONE;
+        for (Vertex v : senders) ws.match[v.index] = SolverWorkspace.NONE;
+        matched = cache != null ? cache.lookup(this, ws) : 0;
+      }
+      if (matched < ws.receivers.length) findUnweightedMatches(ws);
+      if (cache != null) cache.store(this, ws);
+      return;
+    }
+    if (copyById.length > 0) {
+      findBestFlows(ws);
       return;
     }
 
-    for (Vertex v : receivers) {
-      v.match = null;
-      v.price = 0;
+    updateMinimumInCosts();
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int unmatched = ws.receivers.length;
+    if (repaired >= 0) unmatched -= repaired;
+    else {
+      for (Vertex v : ws.receivers) {
+        match[v.index] = SolverWorkspace.NONE;
+        price[v.index] = 0;
+      }
+      for (Vertex v : senders) {
+        match[v.index] = SolverWorkspace.NONE;
+        price[v.index] = v.minimumInCost;
+      }
+      if (cache != null) unmatched -= cache.lookup(this, ws);
+      if (workers != null) unmatched -= workers.solve(this, ws);
     }
+    truncateWants(ws);
+    if (warmStart) unmatched -= greedyMatching(ws);
+
+    // Each round augments along the shortest path found by dijkstra, and
+    // then, once the prices are updated, along as many other zero reduced
+    // cost paths as augmentTightPaths can find.  Once the matching is
+    // perfect, any edges truncateWants left out that the prices show could
+    // improve it are put back, and the solve resumes.
+    // (the pool's threads are shut down however the solve ends, so that an
+    // exception cannot leave them keeping the JVM alive)
+    try {
+      while (unmatched > 0 || (unmatched = restoreViolatedWants(ws, false)) > 0) {
+        if (dijkstraThreads > 0) parallelDijkstra(ws);
+        else dijkstra(ws);
+        if (ws.sinkFrom == null) {
+          // once shrinking has removed some self edges, the wants left out
+          // may be needed for a perfect matching at all; with none left
+          // out, the search would only fail the same way again
+          boolean leftOut = false;
+          for (Vertex v : ws.receivers) leftOut |= ws.activeDegree[v.index] < v.degree;
+          if (!leftOut)
+            throw new IllegalStateException("No perfect matching (" + unmatched + " items unmatched)");
+          unmatched += restoreViolatedWants(ws, true);
+          continue;
+        }
+
+        // update the matching
+        int sender = ws.sinkFrom.index;
+        while (sender != SolverWorkspace.NONE) {
+          int receiver = ws.from[sender];
+
+          // unlink sender and receiver from current matches
+          if (match[sender] != SolverWorkspace.NONE) match[match[sender]] = SolverWorkspace.NONE;
+          if (match[receiver] != SolverWorkspace.NONE) match[match[receiver]] = SolverWorkspace.NONE;
+
+          match[sender] = receiver;
+          match[receiver] = sender;
+
+          // update matchCost
+          Vertex r = vertexAt(receiver);
+          for (int k = 0; k < r.degree; k++) {
+            int e = ws.receiverEdge(r, k);
+            if (senderOf(e).index == sender) {
+              ws.matchCost[receiver] = costOf(e);
+              break;
+            }
+          }
+
+          sender = ws.from[receiver];
+        }
+        unmatched--;
+
+        updatePrices(ws);
+        if (dijkstraThreads > 0) ws.delta = Math.max(1, ws.sinkCost / DELTA_FRACTION);
+
+        if (multipleAugmentations) unmatched -= augmentTightPaths(ws);
+      }
+    }
+    finally {
+      if (ws.dijkstraPool != null) {
+        ws.dijkstraPool.shutdown();
+        ws.dijkstraPool = null;
+      }
+    }
+    if (cache != null) cache.store(this, ws);
+  }
+
+  // Adds the distances of the last dijkstra to the prices.  The vertices it
+  // never reached go up by the farthest distance that was reached, which
+  // keeps every reduced cost non-negative and the prices as low as it can.
+  // Wherever else a price is set, it is set below some sender's price, so
+  // checking them against LIMIT here keeps them all within it.
+  private void updatePrices(SolverWorkspace ws) {
+    long[] distance = ws.distance;
+    long[] price = ws.price;
+    long farthest = 0;
+    for (Vertex v : ws.receivers)
+      if (distance[v.index] < INFINITY) farthest = Math.max(farthest, distance[v.index]);
+    for (Vertex v : senders)
+      if (distance[v.index] < INFINITY) farthest = Math.max(farthest, distance[v.index]);
+    for (Vertex v : ws.receivers) {
+      price[v.index] += Math.min(distance[v.index], farthest);
+      if (price[v.index] > LIMIT) throw tooLarge(price[v.index]);
+    }
+    for (Vertex v : senders) {
+      price[v.index] += Math.min(distance[v.index], farthest);
+      if (price[v.index] > LIMIT) throw tooLarge(price[v.index]);
+    }
+  }
+
+  // Keeps what is left of a kept matching (see SolverWorkspace.kept): the
+  // pairs whose edge is still there and tight stay matched, along with the
+  // prices, which only have to keep every reduced cost non-negative, and
+  // the solve then only has to match the rest.  Removing edges cannot make
+  // a reduced cost negative, so after shrinking, which leaves the matched
+  // edges alone, nothing at all is left to do.  Returns the number of
+  // receivers still matched.
+  private int repairMatching(SolverWorkspace ws) {
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int count = 0;
+    for (Vertex receiver : ws.receivers) {
+      int r = receiver.index;
+      int s = match[r];
+      if (s == SolverWorkspace.NONE) continue;
+      match[r] = SolverWorkspace.NONE;
+      if (match[s] != r) continue;
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = receiverEdge(receiver, k);
+        if (senderOf(e).index == s && price[r] + costOf(e) == price[s]) {
+          match[r] = s;
+          ws.matchCost[r] = costOf(e);
+          count++;
+          break;
+        }
+      }
+    }
+    for (Vertex sender : senders) {
+      int s = sender.index;
+      if (match[s] != SolverWorkspace.NONE && match[match[s]] != s)
+        match[s] = SolverWorkspace.NONE;
+    }
+    return count;
+  }
+
+  // The cheapest edge into each sender, the starting price of the sender,
+  // is kept from one solve to the next and only worked out again for the
+  // senders whose edges have changed since.  This is the one thing a solve
+  // updates in the graph itself, so concurrent solves take turns at it.
+  private synchronized void updateMinimumInCosts() {
     for (Vertex v : senders) {
-      v.match = null;
       if (v.dirty) {
         v.minimumInCost = Long.MAX_VALUE;
-        for (Edge edge : v.edges)
-          v.minimumInCost = Math.min(edge.cost,v.minimumInCost);
+        for (int k = 0; k < v.degree; k++)
+          v.minimumInCost = Math.min(costOf(senderEdge(v, k)),v.minimumInCost);
         v.dirty = false;
       }
-      v.price = v.minimumInCost;
     }
+  }
 
-    for (int round = 0; round < receivers.length; round++) {
-      dijkstra();
-
-      // update the matching
-      Vertex sender = sinkFrom;
-      assert sender != null;
-      while (sender != null) {
-        Vertex receiver = sender.from;
+  // Augmenting along every tight path after each dijkstra round, and
+  // starting from a greedy matching, are both much faster, but when several
+  // matchings are optimal each finds another one than a solve without, so
+  // they are only done when asked for, and the loops of a trade rerun
+  // without them stay as they were published.
+  boolean multipleAugmentations = false;
+  boolean warmStart = false;
+
+  // Carrying the matching of the shrink solve over to the first solve after
+  // shrinking saves that solve, but for the same reason it is only done
+  // when asked for: the kept matching is optimal, but not the one a fresh
+  // solve breaks its ties towards.
+  boolean keepShrinkSolve = false;
+
+  // the number of cheapest wants (besides the self edge) that each receiver
+  // starts out with, or 0 to search every edge from the start
+  int truncatedWants = 0;
+
+  // matchings of unchanged components from earlier runs, if set (only for
+  // the main solve, not for shrinking or the later iterations)
+  ComponentCache cache = null;
+
+  // worker processes for the large components, if set (only for the main
+  // solve and the iterations, not for shrinking)
+  WorkerPool workers = null;
+
+  // The sender prices start out as the cheapest edge into each sender, so
+  // every reduced cost is non-negative.  Lower each receiver's price until
+  // its cheapest reduced cost is zero (with the self edges, most receivers'
+  // cheapest edge is then tight), and match each receiver to the first
+  // unmatched sender it has a tight edge to.  The prices stay feasible and
+  // every matched edge is tight, so dijkstra can carry on from this
+  // matching instead of an empty one.  Returns the number of receivers
+  // matched.
+  private int greedyMatching(SolverWorkspace ws) {
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int count = 0;
+    for (Vertex receiver : ws.receivers) {
+      int r = receiver.index;
+      if (match[r] != SolverWorkspace.NONE) continue; // from the cache
+      int degree = ws.activeDegree[r];
+      long reduction = INFINITY;
+      for (int k = 0; k < degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        reduction = Math.min(reduction, costOf(e) - price[senderOf(e).index]);
+      }
+      price[r] = -reduction;
+
+      for (int k = 0; k < degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        int s = senderOf(e).index;
+        if (match[s] == SolverWorkspace.NONE && price[r] + costOf(e) == price[s]) {
+          match[r] = s;
+          match[s] = r;
+          ws.matchCost[r] = costOf(e);
+          count++;
+          break;
+        }
+      }
+    }
+    return count;
+  }
 
-        // unlink sender and receiver from current matches
-        if (sender.match != null) sender.match.match = null;
-        if (receiver.match != null) receiver.match.match = null;
+  // Most receivers end up matched along one of their first few wants, yet
+  // every round of dijkstra relaxes all of their edges.  So each receiver
+  // still to be matched starts out with only its self edge and its
+  // truncatedWants cheapest other edges, moved (in their original order)
+  // to the front of its slots, and the rest left out of the search.
+  private void truncateWants(SolverWorkspace ws) {
+    long[] costs = new long[0];
+    boolean[] keep = new boolean[0];
+    for (Vertex receiver : ws.receivers) {
+      ws.activeDegree[receiver.index] = receiver.degree;
+      if (ws.match[receiver.index] != SolverWorkspace.NONE || truncatedWants == 0) continue;
+      if (receiver.degree <= truncatedWants + 1) continue;
+
+      // the cost of the truncatedWants-th cheapest edge, not counting the
+      // self edge
+      if (costs.length < receiver.degree) costs = new long[receiver.degree];
+      int n = 0;
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        if (senderOf(e) != receiver.twin) costs[n++] = costOf(e);
+      }
+      Arrays.sort(costs, 0, n);
+      long limit = costs[truncatedWants-1];
+      int cheaper = 0; // edges that cost less than the limit all make it
+      while (costs[cheaper] < limit) cheaper++;
+
+      int atLimit = truncatedWants - cheaper;
+      if (keep.length < receiver.degree) keep = new boolean[receiver.degree];
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        long cost = costOf(e);
+        keep[k] = senderOf(e) == receiver.twin || cost < limit;
+        if (cost == limit && !keep[k] && atLimit > 0) {
+          keep[k] = true;
+          atLimit--;
+        }
+      }
+      ws.activeDegree[receiver.index] = moveToFront(ws, receiver, 0, keep);
+    }
+  }
 
-        sender.match = receiver;
-        receiver.match = sender;
+  // Moves the slots k >= from of a receiver with keep[k] set in front of
+  // the others, keeping both groups in order, and returns the slot after
+  // the last one kept.
+  private int moveToFront(SolverWorkspace ws, Vertex receiver, int from, boolean[] keep) {
+    int[] slots = new int[receiver.degree - from];
+    int n = 0;
+    for (int k = from; k < receiver.degree; k++)
+      if (keep[k]) slots[n++] = ws.receiverEdge(receiver, k);
+    int end = from + n;
+    for (int k = from; k < receiver.degree; k++)
+      if (!keep[k]) slots[n++] = ws.receiverEdge(receiver, k);
+    EdgeStore.IntColumn receiverSlots = ws.receiverSlots();
+    for (int i = 0; i < slots.length; i++) receiverSlots.set(receiver.firstSlot + from + i, slots[i]);
+    return end;
+  }
 
-        // update matchCost
-        for (Edge e : receiver.edges) {
-          if (e.sender == sender) {
-            receiver.matchCost = e.cost;
-            break;
-          }
-        }
+  // Once the matching is perfect, the prices certify that it is optimal
+  // among the edges searched, and it is optimal outright unless one of the
+  // edges left out has a negative reduced cost.  Puts every such edge back
+  // in play (or, with all set, every edge left out) and unmatches the
+  // receivers of those that have a negative reduced cost, raising each
+  // one's price just enough to keep the reduced costs of its edges
+  // non-negative, so that the solve can resume from the current prices.
+  // Returns the number of receivers unmatched, 0 when the matching is
+  // optimal.
+  private int restoreViolatedWants(SolverWorkspace ws, boolean all) {
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int count = 0;
+    boolean[] restored = new boolean[0];
+    for (Vertex receiver : ws.receivers) {
+      int r = receiver.index;
+      if (ws.activeDegree[r] == receiver.degree) continue;
+      if (restored.length < receiver.degree) restored = new boolean[receiver.degree];
+      boolean violated = false;
+      for (int k = ws.activeDegree[r]; k < receiver.degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        restored[k] = price[r] + costOf(e) - price[senderOf(e).index] < 0;
+        violated |= restored[k];
+        restored[k] |= all;
+      }
+      ws.activeDegree[r] = moveToFront(ws, receiver, ws.activeDegree[r], restored);
+      if (!violated) continue;
 
-        sender = receiver.from;
+      if (match[r] != SolverWorkspace.NONE) {
+        match[match[r]] = SolverWorkspace.NONE;
+        match[r] = SolverWorkspace.NONE;
+        count++;
       }
+      long p = -INFINITY;
+      for (int k = 0; k < ws.activeDegree[r]; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        p = Math.max(p, price[senderOf(e).index] - costOf(e));
+      }
+      price[r] = p;
+    }
+    return count;
+  }
 
-      // update the prices
-      for (Vertex v : receivers) v.price += v.heapEntry.cost();
-      for (Vertex v : senders)   v.price += v.heapEntry.cost();
+  // After the prices are updated, every shortest path from an unmatched
+  // receiver is tight: each of its edges has zero reduced cost.  Augmenting
+  // along any path of tight edges keeps the prices feasible and every
+  // matched edge tight, which is all the final perfect matching needs to be
+  // optimal.  So instead of running dijkstra again for the next path, find
+  // vertex-disjoint tight paths from the remaining unmatched receivers to
+  // unmatched senders with one dfs pass, and augment along all of them.
+  // Returns the number of paths.
+  private int augmentTightPaths(SolverWorkspace ws) {
+    ws.advanceTimestamp(); // marks the senders visited in this pass
+    int timestamp = ws.timestamp;
+    int[] match = ws.match;
+    long[] price = ws.price;
+    int[] mark = ws.mark;
+    int n = ws.receivers.length;
+    Vertex[] receiverStack = ws.vertexStack(n);
+    int[] indexStack = ws.indexStack(n);
+    int[] edgeStack = ws.edgeStack(n);
+    int count = 0;
+
+    for (Vertex root : ws.receivers) {
+      if (match[root.index] != SolverWorkspace.NONE) continue;
+      int pos = 0;
+      receiverStack[0] = root;
+      indexStack[0] = 0;
+      while (pos >= 0) {
+        Vertex receiver = receiverStack[pos];
+        int r = receiver.index;
+        int k = indexStack[pos]++;
+        if (k == ws.activeDegree[r]) { // backtrack
+          pos--;
+          continue;
+        }
+        int e = ws.receiverEdge(receiver, k);
+        Vertex sender = senderOf(e);
+        int s = sender.index;
+        if (s == match[r] || mark[s] == timestamp) continue;
+        if (price[r] + costOf(e) != price[s]) continue; // not tight
+        mark[s] = timestamp;
+        edgeStack[pos] = e;
+        if (match[s] == SolverWorkspace.NONE) {
+          // found a path, so augment along it
+          for (int i = pos; i >= 0; i--)
+            ws.setMatch(receiverStack[i], senderOf(edgeStack[i]), costOf(edgeStack[i]));
+          count++;
+          break;
+        }
+        receiverStack[++pos] = vertexAt(match[s]);
+        indexStack[pos] = 0;
+      }
     }
+    return count;
   }
 
-  List<List<Vertex>> findCycles() {
-    findBestMatches();
-    elideDummies();
-    advanceTimestamp();
-    List<List<Vertex>> cycles = new ArrayList<List<Vertex>>();
+  // Solves, and leaves the trade cycles in the workspace, as the matching
+  // and as the index and size of the first receiver of each cycle, in the
+  // order collectCycles lists them.  Returns the number of cycles.
+  int findCycles(SolverWorkspace ws) {
+    if (approx) findApproxMatches(ws);
+    else findBestMatches(ws);
+    liftReductions(ws);
+    if (copyById.length > 0) expandFlows(ws);
+    elideDummies(ws);
+    ws.advanceTimestamp();
+    ws.cycleCount = 0;
+
+    for (Vertex vertex : ws.receivers) {
+      if (vertex.copies == 1) countCycle(ws, vertex);
+      else for (Vertex copy : vertex.copyVertices) countCycle(ws, copy);
+    }
+    for (Vertex vertex : reducedReceivers) countCycle(ws, vertex);
+    return ws.cycleCount;
+  } // end findCycles
 
-    for (Vertex vertex : receivers) {
-      if (vertex.mark == timestamp || vertex.match == vertex.twin) continue;
+  private void countCycle(SolverWorkspace ws, Vertex vertex) {
+    int[] mark = ws.mark;
+    if (mark[vertex.index] == ws.timestamp || ws.match(vertex) == vertex.twin) return;
 
-      List<Vertex> cycle = new ArrayList<Vertex>();
-      Vertex v = vertex;
-      while (v.mark != timestamp) {
-        v.mark = timestamp;
+    int size = 0;
+    Vertex v = vertex;
+    while (mark[v.index] != ws.timestamp) {
+      mark[v.index] = ws.timestamp;
+      size++;
+      v = ws.match(v).twin;
+    }
+    ws.cycleStart[ws.cycleCount] = vertex.index;
+    ws.cycleSize[ws.cycleCount++] = size;
+  }
+
+  // the cycles left by findCycles (or restoreMatches), as lists of receivers
+  List<List<Vertex>> collectCycles(SolverWorkspace ws) {
+    List<List<Vertex>> cycles = new ArrayList<List<Vertex>>(ws.cycleCount);
+    for (int i = 0; i < ws.cycleCount; i++) {
+      List<Vertex> cycle = new ArrayList<Vertex>(ws.cycleSize[i]);
+      Vertex start = vertexAt(ws.cycleStart[i]);
+      Vertex v = start;
+      do {
         cycle.add(v);
-        v = v.match.twin;
-      }
+        v = ws.match(v).twin;
+      } while (v != start);
       cycles.add(cycle);
     }
     return cycles;
-  } // end findCycles
+  }
 
   //////////////////////////////////////////////////////////////////////
 
-  private Random random = new Random();
-
-  void setSeed(long seed) { random.setSeed(seed); }
-
-  <T> void shuffle(T[] a) {
+  <T> void shuffle(SolverWorkspace ws, T[] a) {
     for (int i = a.length; i > 1; i--) {
-      int j = random.nextInt(i);
+      int j = ws.random.nextInt(i);
       T tmp = a[j];
       a[j] = a[i-1];
       a[i-1] = tmp;
     }
   }
 
-  void shuffle() {
-    shuffle(receivers);
-    for (Vertex v : receivers) shuffle(v.edges);
+  // shuffles the order of the receivers and of their edges, for the next
+  // solve with the workspace
+  void shuffle(SolverWorkspace ws) {
+    ws.attach(this);
+    shuffle(ws, ws.receivers);
+    for (Vertex v : ws.receivers) shuffleEdges(ws, v);
   }
 
-  void elideDummies() {
-    for (Vertex v : receivers) {
-      while (v.match.isDummy && v.match != v.twin) {
-        Vertex dummySender = v.match;
-        Vertex nextSender = dummySender.twin.match;
-        v.match = nextSender;
-        nextSender.match = v;
-        dummySender.match = dummySender.twin;
-        dummySender.twin.match = dummySender;
+  // the same shuffle, applied to the edge slots of a receiver
+  void shuffleEdges(SolverWorkspace ws, Vertex v) {
+    EdgeStore.IntColumn slots = ws.receiverSlots();
+    for (int i = v.degree; i > 1; i--) {
+      int j = ws.random.nextInt(i);
+      int tmp = slots.get(v.firstSlot + j);
+      slots.set(v.firstSlot + j, slots.get(v.firstSlot + i-1));
+      slots.set(v.firstSlot + i-1, tmp);
+    }
+  }
+
+  void elideDummies(SolverWorkspace ws) {
+    for (Vertex v : ws.receivers) {
+      if (v.copies == 1) elideDummies(ws, v);
+      else for (Vertex copy : v.copyVertices) elideDummies(ws, copy);
+    }
+    for (Vertex v : reducedReceivers) elideDummies(ws, v);
+  }
+  private void elideDummies(SolverWorkspace ws, Vertex v) {
+    int[] match = ws.match;
+    while (ws.match(v).isDummy && ws.match(v) != v.twin) {
+      Vertex dummySender = ws.match(v);
+      Vertex nextSender = ws.match(dummySender.twin);
+      match[v.index] = nextSender.index;
+      match[nextSender.index] = v.index;
+      match[dummySender.index] = dummySender.twin.index;
+      match[dummySender.twin.index] = dummySender.index;
+    }
+  }
+
+  // keeps the solution left by findCycles, to go back to after later solves
+  void saveMatches(SolverWorkspace ws) {
+    int n = 2 * vertexCount();
+    System.arraycopy(ws.match, 0, ws.savedMatch, 0, n);
+    System.arraycopy(ws.matchCost, 0, ws.savedMatchCost, 0, n);
+    System.arraycopy(ws.cycleStart, 0, ws.savedCycleStart, 0, ws.cycleCount);
+    System.arraycopy(ws.cycleSize, 0, ws.savedCycleSize, 0, ws.cycleCount);
+    ws.savedCycleCount = ws.cycleCount;
+  }
+  void restoreMatches(SolverWorkspace ws) {
+    int n = 2 * vertexCount();
+    System.arraycopy(ws.savedMatch, 0, ws.match, 0, n);
+    System.arraycopy(ws.savedMatchCost, 0, ws.matchCost, 0, n);
+    System.arraycopy(ws.savedCycleStart, 0, ws.cycleStart, 0, ws.savedCycleCount);
+    System.arraycopy(ws.savedCycleSize, 0, ws.cycleSize, 0, ws.savedCycleCount);
+    ws.cycleCount = ws.savedCycleCount;
+  }
+
+  /////////////////////////////////////////////////////////////////
+
+  // Items with copies.  An owner with several identical copies of an item
+  // lists it once, and the others want it once, but duplicating it into a
+  // vertex pair per copy multiplies its edges (and everyone's edges to it)
+  // and leaves the solver trying out every way of swapping the copies
+  // around.  So the copies stay one vertex pair with a capacity, and
+  // findBestFlows solves the min-cost flow problem in which every vertex
+  // is matched to exactly as many others (counting itself) as it has
+  // copies.  With a copy per unit of capacity, this is the matching problem
+  // on the duplicated graph, and expandFlows turns the flow back into one.
+
+  private List<Vertex> copyList = new ArrayList<Vertex>(); // null when frozen
+
+  // the wants and costs of every vertex, as freeze() takes them
+  static class Wants {
+    int[][] wants;
+    long[][] costs;
+    Wants(int[][] wants, long[][] costs) {
+      this.wants = wants;
+      this.costs = costs;
+    }
+  }
+
+  // Gives a vertex a copy with each of the names, before the graph is
+  // frozen.  The copies are not in the graph themselves, or in nameMap.
+  void addCopies(Vertex receiver, String[] names) {
+    assert !frozen && receiver.copies == 1;
+    receiver.copies = receiver.twin.copies = names.length;
+    receiver.copyVertices = new Vertex[names.length];
+    for (int i = 0; i < names.length; i++) {
+      Vertex copy = new Vertex(names[i],receiver.user,false,VertexType.RECEIVER);
+      Vertex twin = new Vertex(names[i],receiver.user,false,VertexType.SENDER);
+      copy.twin = twin;
+      twin.twin = copy;
+      receiver.copyVertices[i] = copy;
+      copyList.add(copy);
+    }
+  }
+
+  private void numberCopies() {
+    for (int i = 0; i < copyById.length; i++) {
+      copyById[i].setId(receiverById.length + i);
+      copyById[i].twin.setId(receiverById.length + i);
+    }
+  }
+
+  // Merges each group of interchangeable items into its first item, before
+  // the graph is frozen: the first becomes a vertex with a copy for every
+  // copy of the items in the group, and the rest leave the graph.  Returns
+  // the wants renumbered for the vertices that are left, with any repeated
+  // wants for a merged item left out.
+  Wants mergeCopies(List<List<Vertex>> groups, Wants wants) {
+    assert !frozen;
+    int n = receiverList.size();
+    int[] target = new int[n]; // the vertex each one merges into
+    for (int i = 0; i < n; i++) target[i] = i;
+    for (List<Vertex> group : groups) {
+      Vertex first = group.get(0);
+      List<String> names = new ArrayList<String>();
+      for (Vertex v : group) {
+        if (v.copies == 1) names.add(v.name);
+        else for (Vertex copy : v.copyVertices) names.add(copy.name);
+        if (v != first) {
+          target[v.id] = first.id;
+          nameMap.put(v.name, first);
+        }
+      }
+      for (Vertex v : group) {
+        if (v.copies == 1) continue;
+        for (Vertex copy : v.copyVertices) copyList.remove(copy);
+        v.copies = v.twin.copies = 1;
+        v.copyVertices = null;
       }
+      addCopies(first, names.toArray(new String[0]));
     }
+    return renumber(target, wants.wants, wants.costs);
   }
 
-  void saveMatches() {
-    for (Vertex v : receivers) {
-      v.savedMatch = v.match;
-      v.savedMatchCost = v.matchCost;
+  // The opposite, for the solves that can only match one to one: each
+  // vertex with copies is replaced by the copies themselves, before the
+  // graph is frozen, each wanting what the item wants and wanted by
+  // whoever wants the item.  Returns the wants, as mergeCopies does.
+  Wants expandCopies(Wants all) {
+    assert !frozen;
+    int[][] wants = all.wants;
+    long[][] costs = all.costs;
+    List<Vertex> oldReceivers = receiverList;
+    receiverList = new ArrayList<Vertex>();
+    senderList = new ArrayList<Vertex>();
+    int[][] ids = new int[oldReceivers.size()][]; // the new ids of each old one
+    for (Vertex v : oldReceivers) {
+      Vertex[] copies = v.copies == 1 ? new Vertex[] { v } : v.copyVertices;
+      ids[v.id] = new int[copies.length];
+      for (int i = 0; i < copies.length; i++) {
+        ids[v.id][i] = receiverList.size();
+        receiverList.add(copies[i]);
+        senderList.add(copies[i].twin);
+      }
+    }
+
+    int[][] newWants = new int[receiverList.size()][];
+    long[][] newCosts = new long[receiverList.size()][];
+    for (Vertex v : oldReceivers) {
+      int[] list = wants[v.id];
+      int size = 1;
+      for (int k = 1; k < list.length; k++) size += ids[list[k]].length;
+      for (int copy : ids[v.id]) {
+        newWants[copy] = new int[size];
+        newCosts[copy] = new long[size];
+        newWants[copy][0] = copy;
+        newCosts[copy][0] = costs[v.id][0];
+        int count = 1;
+        for (int k = 1; k < list.length; k++) {
+          for (int id : ids[list[k]]) {
+            newWants[copy][count] = id;
+            newCosts[copy][count++] = costs[v.id][k];
+          }
+        }
+      }
+      if (v.copies > 1) nameMap.put(v.name, v.copyVertices[0]);
+    }
+    for (int i = 0; i < receiverList.size(); i++) {
+      receiverList.get(i).setId(i);
+      senderList.get(i).setId(i);
+      receiverList.get(i).copies = senderList.get(i).copies = 1;
+      receiverList.get(i).copyVertices = null;
+    }
+    copyList.clear();
+    return new Wants(newWants, newCosts);
+  }
+
+  // drops the vertices that target[] sends elsewhere, and renumbers the rest
+  private Wants renumber(int[] target, int[][] wants, long[][] costs) {
+    int n = receiverList.size();
+    int[] newId = new int[n];
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (target[i] != i) continue;
+      newId[i] = count;
+      receiverList.set(count, receiverList.get(i));
+      senderList.set(count, senderList.get(i));
+      wants[count] = wants[i];
+      costs[count] = costs[i];
+      count++;
+    }
+    receiverList.subList(count, n).clear();
+    senderList.subList(count, n).clear();
+
+    int[][] newWants = new int[count][];
+    long[][] newCosts = new long[count][];
+    boolean[] seen = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      int[] list = new int[wants[i].length];
+      long[] listCosts = new long[wants[i].length];
+      int size = 0;
+      for (int k = 0; k < wants[i].length; k++) {
+        int id = newId[target[wants[i][k]]];
+        if (seen[id]) continue;
+        seen[id] = true;
+        list[size] = id;
+        listCosts[size++] = costs[i][k];
+      }
+      for (int k = 0; k < size; k++) seen[list[k]] = false;
+      newWants[i] = Arrays.copyOf(list, size);
+      newCosts[i] = Arrays.copyOf(listCosts, size);
+    }
+    for (int i = 0; i < count; i++) {
+      receiverList.get(i).setId(i);
+      senderList.get(i).setId(i);
+    }
+    return new Wants(newWants, newCosts);
+  }
+
+  // The successive shortest paths of findBestMatches, on the flow problem.
+  // An edge can carry any number of units, as long as no vertex is matched
+  // more times than it has copies, so dijkstra goes from a sender back to
+  // the receiver of every edge with flow into it, rather than to a single
+  // match, and each augmenting path carries as many units as it can.
+  // There is no kernel, truncation or cache here; the options that need
+  // them solve the expanded graph instead (see TradeMaximizer.expandCopies).
+  private void findBestFlows(SolverWorkspace ws) {
+    updateMinimumInCosts();
+    ws.attachFlows(this);
+    int[] free = ws.free;
+    long[] price = ws.price;
+    int unmatched = 0;
+    for (Vertex v : ws.receivers) {
+      free[v.index] = v.copies;
+      price[v.index] = 0;
+      ws.flowCount[v.index] = 0;
+      unmatched += v.copies;
     }
     for (Vertex v : senders) {
-      v.savedMatch = v.match;
+      free[v.index] = v.copies;
+      price[v.index] = v.minimumInCost;
+      ws.flowCount[v.index] = 0;
+    }
+    for (int e = 0; e < store.size(); e++) ws.flow.set(e, 0);
+    if (warmStart) unmatched -= greedyFlows(ws);
+
+    while (unmatched > 0) {
+      flowDijkstra(ws);
+      assert ws.sinkFrom != null; // the self edges can take every copy
+
+      // the most units the path can carry
+      int[] from = ws.from;
+      int units = free[ws.sinkFrom.index];
+      int s = ws.sinkFrom.index;
+      while (true) {
+        int r = receiverOf(from[s]).index;
+        if (from[r] == SolverWorkspace.NONE) {
+          units = Math.min(units, free[r]);
+          break;
+        }
+        units = Math.min(units, ws.flow.get(from[r]));
+        s = senderOf(from[r]).index;
+      }
+
+      // each vertex on the path gives up the units on its edge back before
+      // it takes them on its edge forward, so that it never has more edges
+      // with flow than copies
+      free[ws.sinkFrom.index] -= units;
+      s = ws.sinkFrom.index;
+      while (true) {
+        int e = from[s];
+        int r = receiverOf(e).index;
+        if (from[r] == SolverWorkspace.NONE) free[r] -= units;
+        else addFlow(ws, from[r], -units);
+        addFlow(ws, e, units);
+        if (from[r] == SolverWorkspace.NONE) break;
+        s = senderOf(from[r]).index;
+      }
+      unmatched -= units;
+
+      updatePrices(ws);
+
+      if (multipleAugmentations) unmatched -= augmentTightFlows(ws);
     }
   }
-  void restoreMatches() {
-    for (Vertex v : receivers) {
-      v.match = v.savedMatch;
-      v.matchCost = v.savedMatchCost;
+
+  // augmentTightPaths, on the residual graph: from a sender with no copies
+  // left, a path goes on back along any edge with flow into it (which is
+  // always tight), and each path carries as many units as it can.  Returns
+  // the number of units.
+  private int augmentTightFlows(SolverWorkspace ws) {
+    ws.advanceTimestamp(); // marks the vertices visited in this pass
+    int timestamp = ws.timestamp;
+    int[] free = ws.free;
+    long[] price = ws.price;
+    int[] mark = ws.mark;
+    int n = ws.receivers.length;
+    Vertex[] receiverStack = ws.vertexStack(n);
+    int[] indexStack = ws.indexStack(n);
+    int[] edgeStack = ws.edgeStack(n);   // the edge forward from each receiver
+    int[] backStack = ws.backStack(n);   // the edge back to each receiver
+    int[] flowIndex = ws.flowIndexStack(n); // the next edge back from the
+                                            // sender, or -1 if not there yet
+    int count = 0;
+
+    for (Vertex root : ws.receivers) {
+      if (free[root.index] == 0 || mark[root.index] == timestamp) continue;
+      mark[root.index] = timestamp;
+      int pos = 0;
+      receiverStack[0] = root;
+      indexStack[0] = 0;
+      flowIndex[0] = -1;
+      while (pos >= 0) {
+        Vertex receiver = receiverStack[pos];
+        if (flowIndex[pos] >= 0) { // going on back from the sender
+          int s = senderOf(edgeStack[pos]).index;
+          if (flowIndex[pos] == ws.flowCount[s]) {
+            flowIndex[pos] = -1;
+            continue;
+          }
+          int e = ws.flowEdges[ws.flowStart[s] + flowIndex[pos]++];
+          Vertex next = receiverOf(e);
+          if (mark[next.index] == timestamp) continue;
+          mark[next.index] = timestamp;
+          receiverStack[++pos] = next;
+          backStack[pos] = e;
+          indexStack[pos] = 0;
+          flowIndex[pos] = -1;
+          continue;
+        }
+        int r = receiver.index;
+        int k = indexStack[pos]++;
+        if (k == receiver.degree) { // backtrack
+          pos--;
+          continue;
+        }
+        int e = ws.receiverEdge(receiver, k);
+        int s = senderOf(e).index;
+        if (mark[s] == timestamp) continue;
+        if (price[r] + costOf(e) != price[s]) continue; // not tight
+        mark[s] = timestamp;
+        edgeStack[pos] = e;
+        if (free[s] == 0) {
+          flowIndex[pos] = 0;
+          continue;
+        }
+
+        // found a path, so augment along it, first taking the units off
+        // the edges back (as in findBestFlows)
+        int units = Math.min(free[root.index], free[s]);
+        for (int i = 1; i <= pos; i++) units = Math.min(units, ws.flow.get(backStack[i]));
+        for (int i = 1; i <= pos; i++) addFlow(ws, backStack[i], -units);
+        for (int i = 0; i <= pos; i++) addFlow(ws, edgeStack[i], units);
+        free[root.index] -= units;
+        free[s] -= units;
+        count += units;
+        break;
+      }
     }
+    return count;
+  }
+
+  // greedyMatching, with as many units along each tight edge as both ends
+  // have copies left
+  private int greedyFlows(SolverWorkspace ws) {
+    int[] free = ws.free;
+    long[] price = ws.price;
+    int count = 0;
+    for (Vertex receiver : ws.receivers) {
+      int r = receiver.index;
+      long reduction = INFINITY;
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        reduction = Math.min(reduction, costOf(e) - price[senderOf(e).index]);
+      }
+      price[r] = -reduction;
+
+      for (int k = 0; k < receiver.degree && free[r] > 0; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        int s = senderOf(e).index;
+        if (free[s] > 0 && price[r] + costOf(e) == price[s]) {
+          int units = Math.min(free[r], free[s]);
+          addFlow(ws, e, units);
+          free[r] -= units;
+          free[s] -= units;
+          count += units;
+        }
+      }
+    }
+    return count;
+  }
+
+  // dijkstra, on the residual graph of the flow: ws.from holds the edge
+  // each vertex was reached along, instead of the vertex
+  private void flowDijkstra(SolverWorkspace ws) {
+    ws.sinkFrom = null;
+    ws.sinkCost = Long.MAX_VALUE;
+    int[] free = ws.free;
+    long[] price = ws.price;
+    int[] from = ws.from;
+    Heap.Entry[] heapEntry = ws.heapEntry;
+
+    Heap heap = ws.heap;
+    heap.clear();
     for (Vertex v : senders) {
-      v.match = v.savedMatch;
+      from[v.index] = SolverWorkspace.NONE;
+      heapEntry[v.index] = heap.insert(v, INFINITY);
+    }
+    for (Vertex v : ws.receivers) {
+      from[v.index] = SolverWorkspace.NONE;
+      heapEntry[v.index] = heap.insert(v, free[v.index] > 0 ? 0 : INFINITY);
+    }
+
+    while (!heap.isEmpty()) {
+      Heap.Entry minEntry = heap.extractMin();
+      Vertex vertex = minEntry.vertex();
+      long cost = minEntry.cost();
+      if (cost == INFINITY) break; // everything left is unreachable
+      if (cost > LIMIT) throw tooLarge(cost);
+      int v = vertex.index;
+      if (vertex.type == VertexType.RECEIVER) {
+        for (int k = 0; k < vertex.degree; k++) {
+          int e = ws.receiverEdge(vertex, k);
+          int other = senderOf(e).index;
+          long c = price[v] + costOf(e) - price[other];
+          assert c >= 0;
+          if (cost + c < heapEntry[other].cost()) {
+            heapEntry[other].decreaseCost(cost + c);
+            from[other] = e;
+          }
+        }
+      }
+      else {
+        if (free[v] > 0 && cost < ws.sinkCost) {
+          ws.sinkFrom = vertex;
+          ws.sinkCost = cost;
+        }
+        // back along the edges with flow into the sender
+        int start = ws.flowStart[v];
+        for (int i = start; i < start + ws.flowCount[v]; i++) {
+          int e = ws.flowEdges[i];
+          int other = receiverOf(e).index;
+          long c = price[v] - costOf(e) - price[other];
+          assert c >= 0;
+          if (cost + c < heapEntry[other].cost()) {
+            heapEntry[other].decreaseCost(cost + c);
+            from[other] = e;
+          }
+        }
+      }
     }
+    for (Vertex v : ws.receivers) ws.distance[v.index] = heapEntry[v.index].cost();
+    for (Vertex v : senders) ws.distance[v.index] = heapEntry[v.index].cost();
+  }
+
+  // changes the flow along an edge, keeping the lists of edges with flow
+  // at both ends up to date (each has room for one edge per copy)
+  private void addFlow(SolverWorkspace ws, int e, int units) {
+    int old = ws.flow.get(e);
+    ws.flow.set(e, old + units);
+    assert old + units >= 0;
+    if (old == 0) {
+      addFlowEdge(ws, receiverOf(e).index, e);
+      addFlowEdge(ws, senderOf(e).index, e);
+    }
+    else if (old + units == 0) {
+      removeFlowEdge(ws, receiverOf(e).index, e);
+      removeFlowEdge(ws, senderOf(e).index, e);
+    }
+  }
+  private void addFlowEdge(SolverWorkspace ws, int v, int e) {
+    ws.flowEdges[ws.flowStart[v] + ws.flowCount[v]++] = e;
+  }
+  private void removeFlowEdge(SolverWorkspace ws, int v, int e) {
+    int start = ws.flowStart[v];
+    int last = start + --ws.flowCount[v];
+    for (int i = start; i < last; i++) {
+      if (ws.flowEdges[i] == e) {
+        ws.flowEdges[i] = ws.flowEdges[last];
+        break;
+      }
+    }
+  }
+
+  // Turns the flow into a matching of the copies.  The copies of an item
+  // that keep their own are the first ones, and the rest trade, taking the
+  // units along each edge in turn: each receiving copy gets the next
+  // sending copy of the item it receives.  Which copy goes where makes no
+  // difference to the cost.  A vertex with a single copy is its own copy.
+  private void expandFlows(SolverWorkspace ws) {
+    int[] next = new int[2*receiverById.length]; // the next copy, by index
+    for (Vertex v : ws.receivers) {
+      int stay = 0;
+      int start = ws.flowStart[v.index];
+      for (int i = start; i < start + ws.flowCount[v.index]; i++) {
+        int e = ws.flowEdges[i];
+        if (senderOf(e) != v.twin) continue;
+        stay = ws.flow.get(e);
+        for (int c = 0; c < stay; c++) ws.setMatch(copyOf(v, c), copyOf(v, c).twin, costOf(e));
+      }
+      next[v.index] = next[v.twin.index] = stay;
+      if (v.copies > 1) ws.setMatch(v, v.twin, 0); // not used
+    }
+    for (Vertex v : ws.receivers) {
+      int start = ws.flowStart[v.index];
+      for (int i = start; i < start + ws.flowCount[v.index]; i++) {
+        int e = ws.flowEdges[i];
+        Vertex sender = senderOf(e);
+        if (sender == v.twin) continue;
+        for (int unit = 0; unit < ws.flow.get(e); unit++) {
+          Vertex copy = copyOf(v, next[v.index]++);
+          Vertex sendingCopy = copyOf(sender.twin, next[sender.index]++).twin;
+          ws.setMatch(copy, sendingCopy, costOf(e));
+        }
+      }
+    }
+  }
+
+  private static Vertex copyOf(Vertex receiver, int c) {
+    return receiver.copies == 1 ? receiver : receiver.copyVertices[c];
+  }
+
+  // the receivers of every copy of an item
+  static Vertex[] copiesOf(Vertex receiver) {
+    return receiver.copies == 1 ? new Vertex[] { receiver } : receiver.copyVertices;
   }
 
   /////////////////////////////////////////////////////////////////
@@ -420,14 +1865,12 @@ public class Graph {
     reportStats("Original", verbose);
 
     removeImpossibleEdgesAndOrphans();
+    if (compactLayout) compactLayout();
     reportStats("Shrink 0 (SCC)", verbose);
     if (level == 0) return;
 
     long startTime = System.currentTimeMillis();
 
-    int factor = receivers.length+1;
-
-    scaleUpEdgeCosts(factor);
     findRequiredEdgesAndShrink(verbose);
     removeImpossibleEdgesAndOrphans();
     reportStats("Shrink 1 (SCC)", verbose);
@@ -440,23 +1883,11 @@ public class Graph {
       if (verbose) out.println("Shrink 2 time = " + (System.currentTimeMillis() - startTime) + "ms");
       hasBeenFullyShrunk = true;
     }
-    scaleDownEdgeCosts(factor);
-  }
 
-  void scaleUpEdgeCosts(int factor) {
-    for (Vertex v : senders) {
-      v.dirty = true;
-      for (Edge e : v.edges)
-        e.cost *= factor;
-    }
-  }
-
-  void scaleDownEdgeCosts(int factor) {
-    for (Vertex v : senders) {
-      v.dirty = true;
-      for (Edge e : v.edges)
-        e.cost /= factor;
-    }
+    // every edge removed since findEdgeStatuses solved the graph was left
+    // out of the matching it found, so the first solve after shrinking can
+    // start from that matching and its prices rather than from scratch
+    workspace.kept = keepShrinkSolve;
   }
 
   static enum EdgeStatus { UNKNOWN, REQUIRED, OPTIONAL, FORBIDDEN }
@@ -466,82 +1897,124 @@ public class Graph {
   //   - FORBIDDEN if it is in *no* optimal solutions
   //   - UNKNOWN if its status has not yet been determined
 
+  // Finds the status of every edge with a single solve.  Once the solve is
+  // done, its prices are optimal, and so the optimal solutions are exactly
+  // the perfect matchings that only use tight edges (those with a reduced
+  // cost of zero).  Among those, an edge that is not matched is in some
+  // other one if and only if it is on an alternating cycle: leading from
+  // its receiver to its sender, and then back along the matched edges and
+  // other tight edges to its receiver.  So, with an arc from each receiver
+  // to the match of every sender it has a tight edge to, an unmatched tight
+  // edge is OPTIONAL if its receiver and the match of its sender are in
+  // the same strongly connected component, and a matched edge is REQUIRED
+  // unless its receiver is in a component of two or more.  Everything else
+  // is in no optimal solution, but is left UNKNOWN here.
+  //
+  // (This used to take a solve for every few edges found, with the costs
+  // scaled up by the number of receivers so that a bump of 1 could break
+  // the ties, which overflowed on large trades with large costs.  Nothing
+  // here adds to the costs at all.)
+  private void findEdgeStatuses() {
+    findBestMatches(workspace);
+    int[] match = workspace.match;
+    long[] price = workspace.price;
+
+    // Tarjan's algorithm, iterative, on the receivers
+    int n = 2 * vertexCount();
+    int[] order = new int[n];  // by Vertex.index, 0 if not yet visited
+    int[] low = new int[n];
+    int[] component = new int[n];
+    int[] componentSize = new int[receivers.length + 1];
+    Vertex[] stack = new Vertex[receivers.length];
+    Vertex[] path = workspace.vertexStack(receivers.length);
+    int[] next = workspace.indexStack(receivers.length);
+    int visited = 0, stackSize = 0, components = 0;
+    for (Vertex root : receivers) {
+      if (order[root.index] != 0) continue;
+      int pos = 0;
+      path[0] = root;
+      next[0] = 0;
+      order[root.index] = low[root.index] = ++visited;
+      stack[stackSize++] = root;
+      while (pos >= 0) {
+        Vertex r = path[pos];
+        if (next[pos] < r.degree) {
+          int e = receiverEdge(r, next[pos]++);
+          int s = senderOf(e).index;
+          if (s == match[r.index] || price[r.index] + costOf(e) != price[s]) continue;
+          Vertex w = vertexAt(match[s]);
+          if (order[w.index] == 0) {
+            order[w.index] = low[w.index] = ++visited;
+            stack[stackSize++] = w;
+            path[++pos] = w;
+            next[pos] = 0;
+          }
+          else if (component[w.index] == 0) {
+            low[r.index] = Math.min(low[r.index], order[w.index]);
+          }
+          continue;
+        }
+        if (low[r.index] == order[r.index]) {
+          components++;
+          Vertex w;
+          do {
+            w = stack[--stackSize];
+            component[w.index] = components;
+            componentSize[components]++;
+          } while (w != r);
+        }
+        pos--;
+        if (pos >= 0) low[path[pos].index] = Math.min(low[path[pos].index], low[r.index]);
+      }
+    }
+
+    for (Vertex r : receivers) {
+      for (int k = 0; k < r.degree; k++) {
+        int e = receiverEdge(r, k);
+        int s = senderOf(e).index;
+        if (s == match[r.index]) {
+          assert price[r.index] + costOf(e) == price[s];
+          boolean alone = componentSize[component[r.index]] == 1;
+          setStatus(e, alone ? EdgeStatus.REQUIRED : EdgeStatus.OPTIONAL);
+        }
+        else if (price[r.index] + costOf(e) == price[s]
+                 && component[r.index] == component[match[s]]) {
+          setStatus(e, EdgeStatus.OPTIONAL);
+        }
+        else setStatus(e, EdgeStatus.UNKNOWN);
+      }
+    }
+  }
+
   // Identify which edges are REQUIRED
   // All all other edges from the same receiver or sender *must* be forbidden
   // so delete them
-  // leaves the cost of all required edges incremented by 1
   void findRequiredEdgesAndShrink(boolean verbose) {
-    int numRequired = receivers.length;
-    long totalCost = 0;
-    Edge[] requiredEdges = new Edge[numRequired];
-    int run = 1;
-
     if (!verbose) out.print("Shrink (level 1) ");
 
-    // Find initial solution. Temporaritly mark all chosen edges as REQUIRED
-    // and bump their costs.
-    findBestMatches();
-    for (int i = 0; i < receivers.length; i++) {
-      Vertex v = receivers[i];
-      Edge e = v.edgeMap.get(v.match);
-      totalCost += e.cost;
-      requiredEdges[i] = e;
-      e.status = EdgeStatus.REQUIRED;
-      e.cost++;
-      if (e.cost == e.sender.minimumInCost+1) e.sender.dirty = true;
-    }
-    reportStatsOrDot("Shrink 1."+run, verbose);
-
-    // Find new solutions.  Because of the bumped costs, each new solution
-    // will include as many new edges as possible.  Any previously REQUIRED
-    // edge that is not included in one of these solutions is not actually
-    // required after all, so mark it as OPTIONAL and unbump its cost.
-    for (run = 2; numRequired > 0; run++) {
-      findBestMatches();
-      long currentCost = 0;
-      HashSet<Edge> edgeSet = new HashSet<Edge>(receivers.length);
-      for (Vertex v : receivers) {
-        Edge e = v.edgeMap.get(v.match);
-        edgeSet.add(e);
-        currentCost += e.cost;
-        if (e.status != EdgeStatus.REQUIRED) e.status = EdgeStatus.OPTIONAL;
-      }
-      if (currentCost == totalCost + numRequired) {  // no new edges were found
-        reportStatsOrDot("Shrink 1."+run, verbose);
-        break;
-      }
-      int count = 0;
-      for (int i = 0; i < numRequired; i++) {
-        Edge e = requiredEdges[i];
-        if (edgeSet.contains(e)) {
-          requiredEdges[count++] = e;
-        }
-        else {
-          // this edge isn't required after all
-          e.status = EdgeStatus.OPTIONAL;
-          e.cost--;
-          if (e.cost == e.sender.minimumInCost-1) e.sender.dirty = true;
-        }
+    findEdgeStatuses();
+    reportStatsOrDot("Shrink 1.1", verbose);
+
+    // everything marked REQUIRED is accurate, which means we can delete all
+    // other edges from that sender or to that receiver.  Those other edges
+    // cannot be OPTIONAL so must still be marked UNKNOWN.
+    List<Integer> requiredEdges = new ArrayList<Integer>();
+    for (Vertex v : receivers) {
+      for (int k = 0; k < v.degree; k++) {
+        int e = receiverEdge(v, k);
+        if (statusOf(e) == EdgeStatus.REQUIRED) requiredEdges.add(e);
       }
-      numRequired = count;
-      reportStatsOrDot("Shrink 1."+run, verbose);
     }
-
-    // at this point everything marked REQUIRED is accurate, which means we can
-    // delete all other edges from that sender or to that receiver.  Those other
-    // edges cannot have been marked OPTIONAL so must still be marked UNKNOWN.
-    for (int i = 0; i < numRequired; i++) {
-      Edge e = requiredEdges[i];
-      markEdgesForbiddenIfNotRequired(e.receiver);
-      markEdgesForbiddenIfNotRequired(e.sender);
+    for (int e : requiredEdges) {
+      markEdgesForbiddenIfNotRequired(receiverOf(e));
+      markEdgesForbiddenIfNotRequired(senderOf(e));
     }
     for (Vertex v : receivers) removeEdges(v, EdgeStatus.FORBIDDEN);
     for (Vertex v : senders) removeEdges(v, EdgeStatus.FORBIDDEN);
 
-    for (int i = 0; i < numRequired; i++) {
-      Edge e = requiredEdges[i];
-      assert e.receiver.edges.length == 1;
-      assert e.sender.edges.length == 1;
+    for (int e : requiredEdges) {
+      assert receiverOf(e).degree == 1;
+      assert senderOf(e).degree == 1;
     }
 
     if (verbose) reportStats("Shrink 1 complete", verbose);
@@ -549,48 +2022,11 @@ public class Graph {
   }
 
   // must be called *after* findRequiredEdgesAndShrink
-  // the edges still marked UNKNOWN are either OPTIONAL or FORBIDDEN
-  // mark all the OPTIONAL ones, then anything left is FORBIDDEN and can be
-  // removed
+  // the edges still marked UNKNOWN are FORBIDDEN (see findEdgeStatuses),
+  // so remove them
   void findForbiddenEdgesAndShrink(boolean verbose) {
-    int V = receivers.length;
-    int run = 1;
-
-    // increment cost af all edges already marked OPTIONAL (REQUIRED
-    // edges already incremented)
-    for (Vertex v : receivers) {
-      for (Edge e : v.edges) {
-        if (e.status == EdgeStatus.OPTIONAL) {
-          e.cost++;
-          if (e.cost == e.sender.minimumInCost+1) e.sender.dirty = true;
-        }
-      }
-    }
-
     if (!verbose) out.print("Shrink (level 2) ");
 
-    // because the costs of REQUIRED/OPTIONAL edges are bumped,
-    // each new solution will contain as many previously UNKNOWN
-    // edges as possible.  Mark these new edges as OPTIONAL.
-    // Stop when no new edges are found.
-    for (int newEdges = 999; newEdges > 0; run++) {
-      findBestMatches();
-      newEdges = 0;
-      HashSet<Edge> edgeSet = new HashSet<Edge>(V);
-      for (Vertex v : receivers) {
-        Edge e = v.edgeMap.get(v.match);
-        if (e.status == EdgeStatus.UNKNOWN) {
-          e.status = EdgeStatus.OPTIONAL;
-          e.cost++;
-          if (e.cost == e.sender.minimumInCost+1) e.sender.dirty = true;
-          newEdges++;
-        }
-      }
-      reportStatsOrDot("Shrink 2."+run, verbose);
-    }
-
-    // When no new odges are found, everything that is currently UNKNOWN
-    // is actually FORBIDDEN, so remove them.
     for (Vertex v : receivers) removeEdges(v, EdgeStatus.UNKNOWN);
     for (Vertex v : senders) removeEdges(v, EdgeStatus.UNKNOWN);
 
@@ -598,24 +2034,38 @@ public class Graph {
     else out.println();
   }
 
+  // the edge between a receiver and its current match
+  int matchedEdge(SolverWorkspace ws, Vertex receiver) {
+    int match = ws.match[receiver.index];
+    for (int k = 0; k < receiver.degree; k++) {
+      int e = receiverEdge(receiver, k);
+      if (senderOf(e).index == match) return e;
+    }
+    assert false;
+    return -1;
+  }
+
   void markEdgesForbiddenIfNotRequired(Vertex v) {
-    for (Edge e : v.edges) {
-      assert e.status != EdgeStatus.OPTIONAL;
-      if (e.status != EdgeStatus.REQUIRED) e.status = EdgeStatus.FORBIDDEN;
+    for (int k = 0; k < v.degree; k++) {
+      int e = edgeAt(v, k);
+      assert statusOf(e) != EdgeStatus.OPTIONAL;
+      if (statusOf(e) != EdgeStatus.REQUIRED) setStatus(e, EdgeStatus.FORBIDDEN);
     }
   }
 
   void removeEdges(Vertex v, EdgeStatus statusToRemove) {
+    version++;
     int numToKeep = 0;
-    for (Edge e : v.edges) {
-      if (e.status == statusToRemove) {
-        e.sender.dirty = true;
+    for (int k = 0; k < v.degree; k++) {
+      int e = edgeAt(v, k);
+      if (statusOf(e) == statusToRemove) {
+        senderOf(e).dirty = true;
       }
       else {
-        v.edges[numToKeep++] = e;
+        setEdgeAt(v, numToKeep++, e);
       }
     }
-    v.edges = Arrays.copyOf(v.edges, numToKeep);
+    v.degree = numToKeep;
   }
 
   void reportStatsOrDot(String name, boolean verbose) {
@@ -629,8 +2079,8 @@ public class Graph {
     int[] histogram = new int[3];
     int edgeCount = 0;
     for (Vertex v : receivers) {
-      for (Edge e : v.edges) {
-        histogram[e.status.ordinal()]++;
+      for (int k = 0; k < v.degree; k++) {
+        histogram[statusOf(receiverEdge(v, k)).ordinal()]++;
         edgeCount++;
       }
     }
@@ -645,26 +2095,191 @@ public class Graph {
 
   /////////////////////////////////////////////////////////////////
 
+  // Kernelization: after shrinking, repeatedly apply reductions that cannot
+  // change the cost of an optimal matching.  Each reduction fixes the match
+  // of some receiver/sender pairs and removes them from receivers/senders, so
+  // every later call to findBestMatches only solves the remaining kernel.
+  // A reduced vertex keeps only its fixed edge, which liftReductions() puts
+  // back into the matching.
+  //
+  // Rules:
+  //   - FORCED: a receiver or sender with only one edge left must be matched
+  //     along that edge, so every other edge touching its partner is removed.
+  //     (This also catches the self edge of an item nobody can trade with.)
+  //   - SWAP: an isolated two-item component, where each item wants only the
+  //     other, is decided directly by comparing the cost of the swap against
+  //     the cost of both items keeping their own.
+  // Only FORCED can expose new reductions, so it runs off a worklist until
+  // nothing changes; SWAP components are isolated, so one pass suffices.
+
+  List<Vertex> reducedReceivers = new ArrayList<Vertex>();
+  List<Vertex> reducedSenders   = new ArrayList<Vertex>();
+
+  void kernelize() {
+    assert frozen;
+    version++;
+
+    int[] forced = reduceForcedMatches();
+    int[] swaps = reduceSwapComponents();
+
+    int rCount = 0;
+    for (Vertex v : receivers)
+      if (!v.reduced) receivers[rCount++] = v;
+    receivers = Arrays.copyOf(receivers, rCount);
+    int sCount = 0;
+    for (Vertex v : senders)
+      if (!v.reduced) senders[sCount++] = v;
+    senders = Arrays.copyOf(senders, sCount);
+    assert rCount == sCount;
+
+    out.println("Kernel (forced matches): removed V=" + forced[0] + " E=" + forced[1]);
+    out.println("Kernel (swap components): removed V=" + swaps[0] + " E=" + swaps[1]);
+    reportStats("Kernel", true);
+  }
+
+  // returns { vertices removed, edges removed }
+  private int[] reduceForcedMatches() {
+    int[] removed = new int[2];
+    LinkedList<Vertex> worklist = new LinkedList<Vertex>();
+    for (Vertex v : receivers)
+      if (v.degree == 1) worklist.add(v);
+    for (Vertex v : senders)
+      if (v.degree == 1) worklist.add(v);
+
+    while (!worklist.isEmpty()) {
+      Vertex v = worklist.removeFirst();
+      if (v.reduced) continue;
+      assert v.degree == 1;
+      int edge = edgeAt(v, 0);
+      Vertex receiver = receiverOf(edge);
+      Vertex sender = senderOf(edge);
+
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = receiverEdge(receiver, k);
+        if (e == edge) continue;
+        Vertex other = senderOf(e);
+        detachEdge(other, e);
+        if (other.degree == 1) worklist.add(other);
+        removed[1]++;
+      }
+      for (int k = 0; k < sender.degree; k++) {
+        int e = senderEdge(sender, k);
+        if (e == edge) continue;
+        Vertex other = receiverOf(e);
+        detachEdge(other, e);
+        if (other.degree == 1) worklist.add(other);
+        removed[1]++;
+      }
+      fixEdge(edge);
+      removed[0]++;
+      removed[1]++;
+    }
+    return removed;
+  }
+
+  // returns { vertices removed, edges removed }
+  private int[] reduceSwapComponents() {
+    int[] removed = new int[2];
+    for (Vertex a : receivers) {
+      if (a.reduced) continue;
+      int aWants = swapEdge(a);
+      if (aWants < 0) continue;
+      Vertex b = senderOf(aWants).twin;
+      int bWants = swapEdge(b);
+      if (bWants < 0 || senderOf(bWants) != a.twin) continue;
+      if (a.twin.degree != 2 || b.twin.degree != 2) continue;
+
+      int aKeeps = selfEdge(a);
+      int bKeeps = selfEdge(b);
+      if (costOf(aWants) + costOf(bWants) <= costOf(aKeeps) + costOf(bKeeps)) {
+        fixEdge(aWants);
+        fixEdge(bWants);
+      }
+      else {
+        fixEdge(aKeeps);
+        fixEdge(bKeeps);
+      }
+      removed[0] += 2;
+      removed[1] += 4;
+    }
+    return removed;
+  }
+
+  // the non-self edge of a receiver whose only edges are its self edge and
+  // one other edge, or -1 if the receiver does not have that shape
+  private int swapEdge(Vertex receiver) {
+    if (receiver.degree != 2) return -1;
+    int e0 = receiverEdge(receiver, 0), e1 = receiverEdge(receiver, 1);
+    if (senderOf(e0) == receiver.twin) return e1;
+    if (senderOf(e1) == receiver.twin) return e0;
+    return -1;
+  }
+
+  private int selfEdge(Vertex receiver) {
+    for (int k = 0; k < receiver.degree; k++) {
+      int e = receiverEdge(receiver, k);
+      if (senderOf(e) == receiver.twin) return e;
+    }
+    assert false;
+    return -1;
+  }
+
+  private void fixEdge(int edge) {
+    Vertex receiver = receiverOf(edge);
+    Vertex sender = senderOf(edge);
+    store.setReceiverSlot(receiver.firstSlot, edge);
+    receiver.degree = 1;
+    store.setSenderSlot(sender.firstSlot, edge);
+    sender.degree = 1;
+    receiver.reduced = sender.reduced = true;
+    sender.dirty = true;
+    reducedReceivers.add(receiver);
+    reducedSenders.add(sender);
+  }
+
+  // remove a single edge from v, keeping the order of the remaining edges
+  private void detachEdge(Vertex v, int edge) {
+    int count = 0;
+    for (int k = 0; k < v.degree; k++) {
+      int e = edgeAt(v, k);
+      if (e != edge) setEdgeAt(v, count++, e);
+    }
+    assert count == v.degree-1;
+    v.degree = count;
+    if (v.type == VertexType.SENDER) v.dirty = true;
+  }
+
+  // restore the matches fixed by kernelize()
+  void liftReductions(SolverWorkspace ws) {
+    for (Vertex receiver : reducedReceivers) {
+      int e = receiverEdge(receiver, 0);
+      ws.setMatch(receiver, senderOf(e), costOf(e));
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////
+
   // simplified Ford-Fulkerson to find a perfect bipartite matching
   // under the assumption that a perfect matching exists
-  // ignores weights!
-  void findUnweightedMatches() {
+  // ignores weights!  Carries on from the matches already in ws.
+  void findUnweightedMatches(SolverWorkspace ws) {
     assert frozen;
+    ws.attach(this);
 
-    for (Vertex v : receivers) v.match = null;
-    for (Vertex v : senders) {
-      v.match = null;
-      v.price = 0;  // hack: use the price fields to track "visited" in the dfs
-    }
+    int[] match = ws.match;
+    long[] price = ws.price;
+    for (Vertex v : senders)
+      price[v.index] = 0;  // hack: use the prices to track "visited" in the dfs
 
     // make some stacks for the dfs
-    int n = receivers.length;
-    Vertex[] receiverStack = new Vertex[n];
-    int[] indexStack = new int[n];
-    Vertex[] senderStack= new Vertex[n];
+    int n = ws.receivers.length;
+    Vertex[] receiverStack = ws.vertexStack(n);
+    int[] indexStack = ws.indexStack(n);
+    Vertex[] senderStack = ws.senderStack(n);
     int time = 0;
 
-    for (Vertex v : receivers) {
+    for (Vertex v : ws.receivers) {
+      if (match[v.index] != SolverWorkspace.NONE) continue;
       time++; // a vertex has been visited if its price == time
 
       // do an iterative dfs to find an augmenting path from v to
@@ -672,23 +2287,23 @@ public class Graph {
       int pos = 0;
       receiverStack[pos] = v;
       indexStack[pos] = 0;
-      v.price = time;
+      price[v.index] = time;
 
       while (true) {
         Vertex receiver = receiverStack[pos];
         int i = indexStack[pos]++;
-        if (i == receiver.edges.length) { // backtrack
+        if (i == receiver.degree) { // backtrack
           pos--;
         }
         else {
-          Vertex sender = receiver.edges[i].sender;
-          if (sender.price == time) continue; // already visited, skip it
+          Vertex sender = senderOf(ws.receiverEdge(receiver, i));
+          if (price[sender.index] == time) continue; // already visited, skip it
 
           senderStack[pos] = sender;
-          if (sender.match == null) break; // found the augmenting path
+          if (match[sender.index] == SolverWorkspace.NONE) break; // found the augmenting path
 
-          sender.price = time; // mark as visited
-          receiverStack[++pos] = sender.match;
+          price[sender.index] = time; // mark as visited
+          receiverStack[++pos] = vertexAt(match[sender.index]);
           indexStack[pos] = 0;
         }
       }
@@ -697,16 +2312,619 @@ public class Graph {
       for (int i = 0; i <= pos; i++) {
         Vertex receiver = receiverStack[i];
         Vertex sender = senderStack[i];
-        receiver.match = sender;
-        sender.match = receiver;
+        match[receiver.index] = sender.index;
+        match[sender.index] = receiver.index;
       }
     }
 
     // update all the matchCosts
+    for (Vertex v : ws.receivers) ws.matchCost[v.index] = costOf(matchedEdge(ws, v));
+  }
+
+  ////////////////////////////////////////////////////////////////
+
+  // Preview: the maximum number of trades, ignoring priorities.  Must be
+  // called after removeImpossibleEdgesAndOrphans.
+
+  // the sizes of the strongly connected components, largest first
+  int[] componentSizes() {
+    HashMap<Integer,Integer> sizes = new HashMap<Integer,Integer>();
     for (Vertex v : receivers) {
-      long matchCost = v.edgeMap.get(v.match).cost;
-      v.matchCost = v.match.matchCost = matchCost;
+      Integer size = sizes.get(v.component);
+      sizes.put(v.component, size == null ? 1 : size+1);
+    }
+    int[] result = new int[sizes.size()];
+    int k = 0;
+    for (int size : sizes.values()) result[k++] = -size;
+    Arrays.sort(result);
+    for (k = 0; k < result.length; k++) result[k] = -result[k];
+    return result;
+  }
+
+  // the receivers of each strongly connected component, in the
+  // workspace's order
+  List<List<Vertex>> components(SolverWorkspace ws) {
+    Map<Integer,List<Vertex>> map = new LinkedHashMap<Integer,List<Vertex>>();
+    for (Vertex v : ws.receivers) {
+      List<Vertex> list = map.get(v.component);
+      if (list == null) {
+        list = new ArrayList<Vertex>();
+        map.put(v.component, list);
+      }
+      list.add(v);
     }
+    return new ArrayList<List<Vertex>>(map.values());
+  }
+
+  // The most items that can trade comes from the perfect matching that uses
+  // the fewest self edges, ie, a minimum-cost perfect matching where self
+  // edges cost 1 and all other edges cost 0 (see unitCost).  Priorities
+  // play no part, so this is much cheaper than findBestMatches:
+  //   - start from a maximum matching of the non-self edges (Hopcroft-Karp),
+  //     which costs 0 and so is optimal for its size, with all prices 0
+  //   - then, in phases, find the shortest augmenting paths (dijkstra on
+  //     the reduced costs), update the prices, and augment along as many
+  //     vertex-disjoint zero-cost paths as a single dfs pass can find.
+  // The maximum matching alone is only an upper bound, since it may contain
+  // chains of wants that do not close into loops.
+  // Returns the number of trades, and leaves the matches in the workspace,
+  // with dummies elided.
+  int previewMaxTrades(SolverWorkspace ws) {
+    ws.attach(this);
+    int n = receivers.length;
+    int[] senderPos = new int[senderById.length];
+    for (int j = 0; j < n; j++) senderPos[senders[j].id] = j;
+    int[] receiverMatch = new int[n]; // position of the matched sender, or -1
+    int[] senderMatch = new int[n];   // position of the matched receiver, or -1
+    Arrays.fill(receiverMatch, -1);
+    Arrays.fill(senderMatch, -1);
+
+    int matched = maxNonSelfMatching(senderPos, receiverMatch, senderMatch, null);
+    completeUnitCostMatching(matched, senderPos, receiverMatch, senderMatch);
+
+    for (int i = 0; i < n; i++) {
+      ws.match[receivers[i].index] = senders[receiverMatch[i]].index;
+      ws.match[senders[receiverMatch[i]].index] = receivers[i].index;
+    }
+    elideDummies(ws);
+    int maxTrades = 0;
+    for (Vertex v : receivers)
+      if (!v.isDummy && ws.match(v) != v.twin) maxTrades++;
+    return maxTrades;
+  }
+
+  // Hopcroft-Karp over the non-self edges, starting from a greedy matching.
+  // Items whose id is marked in excluded (if not null) are left out, both
+  // as receivers and as senders.  Returns the number of receivers matched.
+  private int maxNonSelfMatching(int[] senderPos, int[] receiverMatch, int[] senderMatch,
+                                 boolean[] excluded) {
+    int n = receivers.length;
+    int matched = 0;
+    for (int i = 0; i < n; i++) {
+      Vertex r = receivers[i];
+      if (excluded != null && excluded[r.id]) continue;
+      for (int k = 0; k < r.degree; k++) {
+        Vertex s = senderOf(receiverEdge(r, k));
+        if (excluded != null && excluded[s.id]) continue;
+        int j = senderPos[s.id];
+        if (s != r.twin && senderMatch[j] < 0) {
+          receiverMatch[i] = j;
+          senderMatch[j] = i;
+          matched++;
+          break;
+        }
+      }
+    }
+
+    final int UNREACHED = Integer.MAX_VALUE;
+    int[] dist = new int[n];
+    int[] queue = new int[n];
+    int[] next = new int[n];    // next edge to try, per receiver
+    int[] stack = new int[n];   // receivers on the dfs path
+    int[] chosen = new int[n];  // the sender each one would take
+    while (true) {
+      // bfs from the unmatched receivers, layering along alternating paths
+      int head = 0, tail = 0;
+      for (int i = 0; i < n; i++) {
+        if (receiverMatch[i] < 0 && (excluded == null || !excluded[receivers[i].id])) {
+          dist[i] = 0;
+          queue[tail++] = i;
+        }
+        else dist[i] = UNREACHED;
+      }
+      boolean found = false;
+      while (head < tail) {
+        int i = queue[head++];
+        Vertex r = receivers[i];
+        for (int k = 0; k < r.degree; k++) {
+          Vertex s = senderOf(receiverEdge(r, k));
+          if (s == r.twin || (excluded != null && excluded[s.id])) continue;
+          int i2 = senderMatch[senderPos[s.id]];
+          if (i2 < 0) found = true;
+          else if (dist[i2] == UNREACHED) {
+            dist[i2] = dist[i] + 1;
+            queue[tail++] = i2;
+          }
+        }
+      }
+      if (!found) return matched;
+
+      // iterative dfs along the layers, augmenting vertex-disjoint paths
+      Arrays.fill(next, 0);
+      for (int root = 0; root < n; root++) {
+        if (receiverMatch[root] >= 0 || dist[root] != 0) continue;
+        int pos = 0;
+        stack[0] = root;
+        while (pos >= 0) {
+          int x = stack[pos];
+          Vertex r = receivers[x];
+          if (next[x] == r.degree) { // dead end
+            dist[x] = UNREACHED;
+            pos--;
+            continue;
+          }
+          Vertex s = senderOf(receiverEdge(r, next[x]++));
+          if (s == r.twin || (excluded != null && excluded[s.id])) continue;
+          int j = senderPos[s.id];
+          int y = senderMatch[j];
+          if (y < 0) {
+            chosen[pos] = j;
+            for (int k = pos; k >= 0; k--) {
+              receiverMatch[stack[k]] = chosen[k];
+              senderMatch[chosen[k]] = stack[k];
+            }
+            matched++;
+            break;
+          }
+          if (dist[y] == dist[x] + 1) {
+            chosen[pos] = j;
+            stack[++pos] = y;
+          }
+        }
+      }
+    }
+  }
+
+  // Extends a matching of zero-cost edges to a perfect matching of minimum
+  // cost, where edges cost unitCost().  Reduced costs are
+  // cost + receiverPrice - senderPrice, as in dijkstra().
+  private void completeUnitCostMatching(int matched, int[] senderPos,
+                                        int[] receiverMatch, int[] senderMatch) {
+    int n = receivers.length;
+    long[] receiverPrice = new long[n];
+    long[] senderPrice = new long[n];
+    long[] dist = new long[2*n]; // receivers, then senders
+    LongHeap heap = new LongHeap(2*n);
+    int[] next = new int[n];
+    int[] stack = new int[n];
+    int[] chosen = new int[n];
+    int[] seen = new int[n]; // phase in which each sender was last visited
+    Arrays.fill(seen, -1);
+
+    for (int phase = 0; matched < n; phase++) {
+      // dijkstra from all the unmatched receivers, up to the nearest
+      // unmatched sender
+      Arrays.fill(dist, Long.MAX_VALUE);
+      heap.clear();
+      for (int i = 0; i < n; i++) {
+        if (receiverMatch[i] < 0) {
+          dist[i] = 0;
+          heap.insert(0, i);
+        }
+      }
+      long nearest = Long.MAX_VALUE;
+      while (!heap.isEmpty()) {
+        long d = heap.minKey();
+        int v = heap.extractMin();
+        if (d != dist[v]) continue; // stale entry
+        if (v < n) {
+          Vertex r = receivers[v];
+          for (int k = 0; k < r.degree; k++) {
+            Vertex s = senderOf(receiverEdge(r, k));
+            int j = senderPos[s.id];
+            if (j == receiverMatch[v]) continue;
+            long c = d + unitCost(r, s) + receiverPrice[v] - senderPrice[j];
+            if (c < dist[n+j]) {
+              dist[n+j] = c;
+              heap.insert(c, n+j);
+            }
+          }
+        }
+        else if (senderMatch[v-n] < 0) {
+          nearest = d;
+          break;
+        }
+        else {
+          int i = senderMatch[v-n];
+          if (d < dist[i]) {
+            dist[i] = d;
+            heap.insert(d, i);
+          }
+        }
+      }
+      assert nearest < Long.MAX_VALUE; // the self edges guarantee a path
+
+      // every shortest augmenting path is now made of zero-cost edges
+      for (int i = 0; i < n; i++) receiverPrice[i] += Math.min(dist[i], nearest);
+      for (int j = 0; j < n; j++) senderPrice[j] += Math.min(dist[n+j], nearest);
+
+      // augment along vertex-disjoint zero-cost paths
+      Arrays.fill(next, 0);
+      for (int root = 0; root < n; root++) {
+        if (receiverMatch[root] >= 0) continue;
+        int pos = 0;
+        stack[0] = root;
+        while (pos >= 0) {
+          int x = stack[pos];
+          Vertex r = receivers[x];
+          if (next[x] == r.degree) {
+            pos--;
+            continue;
+          }
+          Vertex s = senderOf(receiverEdge(r, next[x]++));
+          int j = senderPos[s.id];
+          if (j == receiverMatch[x] || seen[j] == phase) continue;
+          if (unitCost(r, s) + receiverPrice[x] - senderPrice[j] != 0) continue;
+          seen[j] = phase;
+          chosen[pos] = j;
+          if (senderMatch[j] < 0) {
+            for (int k = pos; k >= 0; k--) {
+              receiverMatch[stack[k]] = chosen[k];
+              senderMatch[chosen[k]] = stack[k];
+            }
+            matched++;
+            break;
+          }
+          stack[++pos] = senderMatch[j];
+        }
+      }
+    }
+  }
+
+  // Only the self edge of a real item costs anything.  Every edge out of a
+  // dummy costs the same in the real solve, so they all cost 0 here.
+  private static int unitCost(Vertex receiver, Vertex sender) {
+    return sender == receiver.twin && !receiver.isDummy ? 1 : 0;
+  }
+
+  // a binary heap of ints ordered by long keys, for the dijkstras of the
+  // preview and the sensitivity report
+  private static class LongHeap {
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+
+    LongHeap(int capacity) {
+      keys = new long[Math.max(capacity, 1)];
+      values = new int[keys.length];
+    }
+
+    boolean isEmpty() { return size == 0; }
+    void clear() { size = 0; }
+    long minKey() { return keys[0]; }
+
+    void insert(long key, int value) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2*size);
+        values = Arrays.copyOf(values, 2*size);
+      }
+      int k = size++;
+      while (k > 0 && keys[(k-1)/2] > key) {
+        keys[k] = keys[(k-1)/2];
+        values[k] = values[(k-1)/2];
+        k = (k-1)/2;
+      }
+      keys[k] = key;
+      values[k] = value;
+    }
+
+    int extractMin() {
+      int min = values[0];
+      long key = keys[--size];
+      int value = values[size];
+      int k = 0;
+      while (2*k+1 < size) {
+        int child = 2*k+1;
+        if (child+1 < size && keys[child+1] < keys[child]) child++;
+        if (keys[child] >= key) break;
+        keys[k] = keys[child];
+        values[k] = values[child];
+        k = child;
+      }
+      keys[k] = key;
+      values[k] = value;
+      return min;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////
+
+  // ENGINE=APPROX: for trades too big for findBestMatches, an auction
+  // (Bertsekas) for the same perfect matching, but where every trade is
+  // worth APPROX_SCALE and a self edge is worth 0.  Priorities are ignored,
+  // except that ties go to the earlier want.  Each unmatched receiver bids for the sender that is worth the
+  // most to it at the current prices, raising that sender's price by the
+  // margin over its next best choice plus 1, and takes the sender from its
+  // previous receiver, who has to bid again.  When everyone is matched, the
+  // matching is within 1 per receiver of the best, so at most
+  // receivers/APPROX_SCALE trades short of the maximum (and usually much
+  // closer).  A price only goes up, and never needs to go past about
+  // APPROX_SCALE, so each receiver bids about APPROX_SCALE times at most:
+  // linear time for a fixed scale.
+  //
+  // A maximum matching of the non-self edges (see previewMaxTrades) is an
+  // upper bound on the number of trades, so the gap is known.
+  static final int APPROX_SCALE = 32;
+
+  boolean approx = false; // findCycles uses findApproxMatches
+
+  // leaves the upper bound in the workspace's approxUpperBound
+  void findApproxMatches(SolverWorkspace ws) {
+    ws.attach(this);
+    Vertex[] receivers = ws.receivers;
+    int n = receivers.length;
+    int[] senderPos = new int[senderById.length];
+    for (int j = 0; j < n; j++) senderPos[senders[j].id] = j;
+
+    long[] price = new long[n];    // by sender position
+    int[] owner = new int[n];      // the receiver holding each sender, or -1
+    int[] holding = new int[n];    // the sender each receiver holds, or -1
+    int[] queue = new int[n];      // unmatched receivers, circular
+    Arrays.fill(owner, -1);
+    Arrays.fill(holding, -1);
+    for (int i = 0; i < n; i++) queue[i] = i;
+    int head = 0, size = n;
+
+    while (size > 0) {
+      int i = queue[head];
+      head = (head+1) % n;
+      size--;
+
+      Vertex receiver = receivers[i];
+      int best = -1;
+      long bestValue = Long.MIN_VALUE, secondValue = Long.MIN_VALUE;
+      for (int k = 0; k < receiver.degree; k++) {
+        Vertex sender = senderOf(ws.receiverEdge(receiver, k));
+        int j = senderPos[sender.id];
+        long value = (sender == receiver.twin ? 0 : APPROX_SCALE) - price[j];
+        if (value > bestValue) {
+          secondValue = bestValue;
+          bestValue = value;
+          best = j;
+        }
+        else if (value > secondValue) secondValue = value;
+      }
+      if (secondValue == Long.MIN_VALUE) secondValue = bestValue; // only one want
+
+      price[best] += bestValue - secondValue + 1;
+      int previous = owner[best];
+      owner[best] = i;
+      holding[i] = best;
+      if (previous >= 0) {
+        holding[previous] = -1;
+        queue[(head+size) % n] = previous;
+        size++;
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      Vertex receiver = receivers[i];
+      Vertex sender = senders[holding[i]];
+      for (int k = 0; k < receiver.degree; k++) {
+        int e = ws.receiverEdge(receiver, k);
+        if (senderOf(e) == sender) {
+          ws.setMatch(receiver, sender, costOf(e));
+          break;
+        }
+      }
+    }
+
+    int[] receiverMatch = new int[n];
+    int[] senderMatch = new int[n];
+    Arrays.fill(receiverMatch, -1);
+    Arrays.fill(senderMatch, -1);
+    ws.approxUpperBound = maxNonSelfMatching(senderPos, receiverMatch, senderMatch, null);
+  }
+
+  ////////////////////////////////////////////////////////////////
+
+  // Sensitivity: for each item that does not trade, the least the total
+  // cost would go up if it had to trade, and the trade that would do it.
+  //
+  // Making item x trade means replacing its self edge by a cycle through x
+  // that alternates between edges outside the matching and matched edges
+  // taken backwards.  With the prices from findBestMatches, the extra cost
+  // of such a cycle is just the sum of the reduced costs on it (the prices
+  // telescope, and the self edge is tight), so the cheapest one is a
+  // shortest path in reduced costs from x's receiver to x's sender, found
+  // with dijkstra.  One search per item, over a graph that is already
+  // solved, instead of re-solving the trade for each.
+  //
+  // A cycle can still leave x without a trade, if x only receives from and
+  // sends to its own dummies.  Then the search is run again with x's first
+  // edge restricted to a real item, which always makes x trade, although
+  // not necessarily as cheaply as possible.
+  //
+  // Must be called right after findBestMatches, before the dummies are
+  // elided and while the prices still go with the matching (so not after a
+  // shrink, a kernelize, the cache or the workers).
+
+  static class Sensitivity {
+    Vertex item;      // the receiver of an item that does not trade
+    long extraCost;   // -1 if no cycle can include the item
+    Vertex receives;  // the sender it would receive from (dummies elided)
+    Vertex sendsTo;   // the receiver it would send to (dummies elided)
+
+    // extraCost split up as the stats report a solution: how many fewer of
+    // the other items would trade (negative if more would), and the change
+    // in the total cost of the trades, which leaves out the costs of not
+    // trading
+    int stops;
+    long tradeCost;
+  }
+
+  // the state of the searches of one sensitivity report
+  private static class CycleSearch {
+    long[] dist;   // receiver ids are even, sender ids odd
+    int[] reached; // stamps, one per search
+    int[] done;
+    int[] from;    // the receiver that reached each sender
+    int stamp = 0;
+    LongHeap heap;
+
+    CycleSearch(int n) {
+      dist = new long[2*n];
+      reached = new int[2*n];
+      done = new int[2*n];
+      from = new int[n];
+      heap = new LongHeap(n);
+    }
+  }
+
+  List<Sensitivity> sensitivity(SolverWorkspace ws) {
+    ws.attach(this);
+    CycleSearch search = new CycleSearch(receiverById.length);
+
+    List<Sensitivity> result = new ArrayList<Sensitivity>();
+    for (Vertex v : orphans) {
+      if (v.isDummy) continue;
+      Sensitivity item = new Sensitivity();
+      item.item = v;
+      item.extraCost = -1;
+      result.add(item);
+    }
+
+    for (Vertex x : ws.receivers) {
+      if (x.isDummy || ws.match(x) != x.twin) continue;
+      Sensitivity item = new Sensitivity();
+      item.item = x;
+      item.extraCost = -1;
+      result.add(item);
+
+      if (!cheapestCycle(ws, search, x, false) || !elidedTrade(ws, search, x, item)) {
+        if (!cheapestCycle(ws, search, x, true) || !elidedTrade(ws, search, x, item)) continue;
+      }
+      item.extraCost = search.dist[2*x.id + 1];
+      countChanges(ws, search, x, item);
+    }
+    return result;
+  }
+
+  // Goes around the cycle the last search found for x, comparing each real
+  // item's match on it with the current one, to fill in what item would
+  // change besides its extraCost.
+  private void countChanges(SolverWorkspace ws, CycleSearch search, Vertex x,
+                            Sensitivity item) {
+    Vertex sender = x.twin;
+    while (true) {
+      Vertex receiver = receiverById[search.from[sender.id]];
+      Vertex old = ws.match(receiver);
+      if (!receiver.isDummy) {
+        boolean traded = old != receiver.twin, trades = sender != receiver.twin;
+        if (traded) item.tradeCost -= ws.matchCost(receiver);
+        if (trades) {
+          for (int k = 0; k < receiver.degree; k++) {
+            int e = receiverEdge(receiver, k);
+            if (senderOf(e) == sender) {
+              item.tradeCost += costOf(e);
+              break;
+            }
+          }
+        }
+        if (receiver != x && traded && !trades) item.stops++;
+        if (receiver != x && !traded && trades) item.stops--;
+      }
+      if (receiver == x) break;
+      sender = old;
+    }
+  }
+
+  // dijkstra in reduced costs from x's receiver to x's sender, without the
+  // self edge; returns false if there is no such path
+  private boolean cheapestCycle(SolverWorkspace ws, CycleSearch search, Vertex x,
+                                boolean realFirstEdge) {
+    long[] dist = search.dist;
+    int[] reached = search.reached;
+    int[] done = search.done;
+    int stamp = ++search.stamp;
+    long[] price = ws.price;
+    LongHeap heap = search.heap;
+    heap.clear();
+    int target = 2*x.id + 1;
+    dist[2*x.id] = 0;
+    reached[2*x.id] = stamp;
+    heap.insert(0, 2*x.id);
+    while (!heap.isEmpty()) {
+      long d = heap.minKey();
+      int u = heap.extractMin();
+      if (done[u] == stamp) continue;
+      done[u] = stamp;
+      if (u == target) return true;
+
+      if (u % 2 == 0) {
+        Vertex receiver = receiverById[u/2];
+        for (int k = 0; k < receiver.degree; k++) {
+          int e = ws.receiverEdge(receiver, k);
+          Vertex sender = senderOf(e);
+          if (sender.index == ws.match[receiver.index]) continue;
+          if (realFirstEdge && receiver == x && sender.isDummy) continue;
+          long c = d + price[receiver.index] + costOf(e) - price[sender.index];
+          int w = 2*sender.id + 1;
+          if (reached[w] != stamp || c < dist[w]) {
+            reached[w] = stamp;
+            dist[w] = c;
+            search.from[sender.id] = receiver.id;
+            heap.insert(c, w);
+          }
+        }
+      }
+      else { // back along the matched edge
+        Vertex sender = senderById[u/2];
+        Vertex receiver = ws.match(sender);
+        long c = d + price[sender.index] - ws.matchCost(receiver) - price[receiver.index];
+        int w = 2*receiver.id;
+        if (reached[w] != stamp || c < dist[w]) {
+          reached[w] = stamp;
+          dist[w] = c;
+          heap.insert(c, w);
+        }
+      }
+    }
+    return false;
+  }
+
+  // Follows the dummies around x in the matching the last search would
+  // give, like elideDummies, to fill in who x receives from and sends to.
+  // Returns false if x would still not trade.
+  private boolean elidedTrade(SolverWorkspace ws, CycleSearch search, Vertex x,
+                              Sensitivity item) {
+    // the changed matches, along the cycle from x's sender back to x
+    Map<Vertex,Vertex> newMatch = new HashMap<Vertex,Vertex>();
+    Map<Vertex,Vertex> newReceiver = new HashMap<Vertex,Vertex>();
+    Vertex sender = x.twin;
+    while (true) {
+      Vertex receiver = receiverById[search.from[sender.id]];
+      newMatch.put(receiver, sender);
+      newReceiver.put(sender, receiver);
+      if (receiver == x) break;
+      sender = ws.match(receiver);
+    }
+
+    Vertex receives = newMatch.get(x);
+    while (receives.isDummy && receives != x.twin) {
+      Vertex next = newMatch.get(receives.twin);
+      receives = next != null ? next : ws.match(receives.twin);
+    }
+    if (receives == x.twin) return false;
+
+    Vertex sendsTo = newReceiver.get(x.twin);
+    while (sendsTo.isDummy) {
+      Vertex next = newReceiver.get(sendsTo.twin);
+      sendsTo = next != null ? next : ws.match(sendsTo.twin);
+    }
+    item.receives = receives;
+    item.sendsTo = sendsTo;
+    return true;
   }
 
   ////////////////////////////////////////////////////////////////
@@ -716,25 +2934,31 @@ public class Graph {
     out.println("SANITY CHECK");
     assert(receivers.length == senders.length);
     int rcount = 0, scount = 0;
-    for (Vertex v : receivers) rcount += v.edges.length;
-    for (Vertex v : senders) scount += v.edges.length;
+    for (Vertex v : receivers) rcount += v.degree;
+    for (Vertex v : senders) scount += v.degree;
     if (rcount != scount) out.println("rcount=" + rcount +" scount="+scount);
     assert(rcount == scount);
     for (Vertex v : receivers) {
-      for (Edge e : v.edges) assert(search(e, e.sender.edges));
+      for (int k = 0; k < v.degree; k++) {
+        int e = receiverEdge(v, k);
+        assert(search(e, senderOf(e)));
+      }
     }
     for (Vertex v : senders) {
-      for (Edge e : v.edges) assert(search(e, e.receiver.edges));
-      assert(v.dirty || v.minimumInCost == calcMinCost(v.edges));
+      for (int k = 0; k < v.degree; k++) {
+        int e = senderEdge(v, k);
+        assert(search(e, receiverOf(e)));
+      }
+      assert(v.dirty || v.minimumInCost == calcMinCost(v));
     }
   }
-  boolean search(Edge edge, Edge[] edges) {
-    for (Edge e : edges) if (e == edge) return true;
+  boolean search(int edge, Vertex v) {
+    for (int k = 0; k < v.degree; k++) if (edgeAt(v, k) == edge) return true;
     return false;
   }
-  long calcMinCost(Edge[] edges) {
+  long calcMinCost(Vertex v) {
     long min = Long.MAX_VALUE;
-    for (Edge e : edges) min = Math.min(e.cost, min);
+    for (int k = 0; k < v.degree; k++) min = Math.min(costOf(edgeAt(v, k)), min);
     return min;
   }
 } // end Graph
@@ -35,8 +35,20 @@ public class Heap {
     return minEntry;
   }
 
+  // Empties the heap.  The entries handed out so far are recycled by later
+  // inserts, so they must not be used after this.
+  public void clear() {
+    root = null;
+    poolSize = 0;
+  }
+
   public Entry insert(Graph.Vertex vertex,long cost) {
-    Entry entry = new Entry(vertex,cost);
+    if (poolSize == pool.length)
+      pool = java.util.Arrays.copyOf(pool, 2*pool.length);
+    Entry entry = pool[poolSize];
+    if (entry == null) entry = pool[poolSize] = new Entry(vertex,cost);
+    else entry.reset(vertex,cost);
+    poolSize++;
     root = root==null ? entry : merge(entry,root);
     return entry;
   }
@@ -83,11 +95,23 @@ public class Heap {
       this.cost = cost;
     }
 
+    private void reset(Graph.Vertex vertex,long cost) {
+      this.vertex = vertex;
+      this.cost = cost;
+      child = sibling = prev = null;
+      used = false;
+    }
+
     private Entry() {} // hide the default constructor
   }
 
   private Entry root = null;
 
+  // every entry inserted since the last clear, in order, followed by
+  // older entries waiting to be reused
+  private Entry[] pool = new Entry[16];
+  private int poolSize = 0;
+
   private Entry merge(Entry a,Entry b) {
     assert a != null && b != null;
 
@@ -0,0 +1,155 @@
+// LinePipeline.java
+
+package tm;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/* The lines of one or more want list files, one file after another, as if
+ * they had been joined into one file (so the line numbers keep counting
+ * from one file into the next).  A file compressed with gzip is recognized
+ * by its first bytes, whatever its name, and decompressed on the fly.
+ *
+ * Reading, decompressing and decoding go on in the background, ahead of
+ * the parser: each file gets a thread from a small pool, which puts the
+ * lines into the file's own queue in batches, and readLine takes them from
+ * the queue of the current file.  The queues are bounded, so a file can
+ * only get a few batches ahead.  The pool starts the files in order, so
+ * the file being parsed always has a thread.
+ */
+final class LinePipeline {
+
+  static final int BATCH = 1024;    // lines
+  static final int QUEUED = 16;     // batches waiting, per file
+  static final List< String > END = new ArrayList< String >(0);
+
+  // the input of each source, opened on its own thread
+  static abstract class Source {
+    final String name;
+    Source(String name) { this.name = name; }
+    abstract InputStream open() throws IOException;
+  }
+
+  static Source of(final File file) {
+    return new Source(file.getPath()) {
+      InputStream open() throws IOException { return new FileInputStream(file); }
+    };
+  }
+
+  // the stream is left open, since it belongs to the caller
+  static Source of(final InputStream input, String name) {
+    return new Source(name) {
+      InputStream open() {
+        return new FilterInputStream(input) {
+          public void close() {}
+        };
+      }
+    };
+  }
+
+  private final List< Source > sources;
+  private final List< BlockingQueue< List< String > > > queues;
+  private final List< Future<?> > futures = new ArrayList< Future<?> >();
+  private final ExecutorService pool;
+
+  private int current = 0; // the source being read
+  private List< String > batch = END;
+  private int next = 0;    // the next line in batch
+
+  LinePipeline(List< Source > sources, final Charset charset) {
+    this.sources = sources;
+    queues = new ArrayList< BlockingQueue< List< String > > >();
+    for (int i = 0; i < sources.size(); i++)
+      queues.add(new ArrayBlockingQueue< List< String > >(QUEUED));
+
+    int threads = Math.max(1, Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "want list reader");
+        thread.setDaemon(true); // never keeps a finished run waiting
+        return thread;
+      }
+    });
+    for (int i = 0; i < sources.size(); i++) {
+      final Source source = sources.get(i);
+      final BlockingQueue< List< String > > queue = queues.get(i);
+      futures.add(pool.submit(new Callable< Void >() {
+        public Void call() throws IOException, InterruptedException {
+          try {
+            read(source, queue, charset);
+          }
+          finally {
+            queue.put(END);
+          }
+          return null;
+        }
+      }));
+    }
+    pool.shutdown();
+  }
+
+  private static void read(Source source, BlockingQueue< List< String > > queue, Charset charset)
+      throws IOException, InterruptedException {
+    InputStream input = new BufferedInputStream(source.open(), 1 << 16);
+    try {
+      input = decompress(input);
+      BufferedReader in = new BufferedReader(new InputStreamReader(input, charset));
+      List< String > lines = new ArrayList< String >(BATCH);
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        lines.add(line);
+        if (lines.size() == BATCH) {
+          queue.put(lines);
+          lines = new ArrayList< String >(BATCH);
+        }
+      }
+      if (lines.size() > 0) queue.put(lines);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  // looks at the first bytes for the format
+  private static InputStream decompress(InputStream input) throws IOException {
+    input.mark(4);
+    int[] magic = new int[4];
+    for (int i = 0; i < 4; i++) magic[i] = input.read();
+    input.reset();
+    if (magic[0] == 0x1f && magic[1] == 0x8b)
+      return new GZIPInputStream(input, 1 << 16);
+    if (magic[0] == 0x28 && magic[1] == 0xb5 && magic[2] == 0x2f && magic[3] == 0xfd)
+      throw new IOException("compressed with zstd, which is not supported (use gzip)");
+    return input;
+  }
+
+  // the next line, or null after the last line of the last file
+  String readLine() throws IOException {
+    while (next == batch.size()) {
+      if (current == sources.size()) return null;
+      try {
+        batch = queues.get(current).take();
+        next = 0;
+        if (batch == END) {
+          futures.get(current).get(); // rethrows what went wrong
+          current++;
+        }
+      }
+      catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      catch (ExecutionException e) {
+        throw new IOException("Cannot read " + sources.get(current).name + ": "
+                              + e.getCause().getMessage(), e.getCause());
+      }
+    }
+    return batch.get(next++);
+  }
+
+  // stops the threads still reading, if the parser gives up early
+  void close() {
+    pool.shutdownNow();
+  }
+
+} // end LinePipeline
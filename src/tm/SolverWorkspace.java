@@ -0,0 +1,220 @@
+// SolverWorkspace.java
+
+package tm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* The state of a solve: the matching, the prices and the search marks of
+ * every vertex, the order in which the receivers and their edges are
+ * searched, and the scratch space for dijkstra and the depth-first
+ * searches.  Once frozen (and shrunk and kernelized), a graph only holds
+ * the structure of the trade, which solving never changes, so any number
+ * of solves, previews and sensitivity reports can run on one graph at once,
+ * each with its own workspace.
+ *
+ * The state is kept in arrays indexed by Vertex.index, which grow to fit
+ * the largest trade solved so far and are then reused, so solving many
+ * trades with the same workspace stops allocating them after the first.
+ *
+ * A workspace may only be used by one solve at a time; give each thread its
+ * own.
+ */
+public final class SolverWorkspace {
+
+  static final int NONE = -1; // no vertex
+
+  final Heap heap = new Heap();
+
+  private Graph.Vertex[] vertexStack = new Graph.Vertex[0];
+  private Graph.Vertex[] senderStack = new Graph.Vertex[0];
+  private int[] indexStack = new int[0];
+  private int[] edgeStack = new int[0];
+  private int[] backStack = new int[0];
+  private int[] flowIndexStack = new int[0];
+
+  public SolverWorkspace() {}
+
+  Graph.Vertex[] vertexStack(int n) {
+    if (vertexStack.length < n) vertexStack = new Graph.Vertex[n];
+    return vertexStack;
+  }
+
+  Graph.Vertex[] senderStack(int n) {
+    if (senderStack.length < n) senderStack = new Graph.Vertex[n];
+    return senderStack;
+  }
+
+  int[] indexStack(int n) {
+    if (indexStack.length < n) indexStack = new int[n];
+    return indexStack;
+  }
+
+  int[] edgeStack(int n) {
+    if (edgeStack.length < n) edgeStack = new int[n];
+    return edgeStack;
+  }
+
+  int[] backStack(int n) {
+    if (backStack.length < n) backStack = new int[n];
+    return backStack;
+  }
+
+  int[] flowIndexStack(int n) {
+    if (flowIndexStack.length < n) flowIndexStack = new int[n];
+    return flowIndexStack;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // the graph the state belongs to, as of which change to its structure
+  private Graph graph = null;
+  private int version;
+
+  int[] match = new int[0];       // the index of each vertex's match, or NONE
+  long[] matchCost = new long[0]; // the cost of the matched edge, kept in the receivers
+  long[] price = new long[0];
+  long[] distance = new long[0];  // from the last dijkstra, INFINITY if unreached
+  int[] from = new int[0];        // the index of the vertex before, on the path found
+  int[] mark = new int[0];        // used for marking as visited, with timestamp
+  int[] activeDegree = new int[0]; // only kept in the receivers (see Graph.truncateWants)
+  Heap.Entry[] heapEntry = new Heap.Entry[0];
+  int[] savedMatch = new int[0];
+  long[] savedMatchCost = new long[0];
+
+  // the cycles found by Graph.findCycles, each as the index of its first
+  // receiver and its size, and those of the solution saved with savedMatch
+  int[] cycleStart = new int[0];
+  int[] cycleSize = new int[0];
+  int cycleCount = 0;
+  int[] savedCycleStart = new int[0];
+  int[] savedCycleSize = new int[0];
+  int savedCycleCount = 0;
+
+  int timestamp = 0;
+  void advanceTimestamp() { timestamp++; }
+
+  // Set when the matching and prices are left from an optimal solve of the
+  // graph, which has since only lost edges that the matching does not use
+  // (see Graph.shrink).  attach then keeps them, although the structure
+  // has changed, and the next solve repairs them instead of starting over.
+  boolean kept = false;
+
+  // the graph's receivers, in the order this solve goes through them, and,
+  // once shuffled or truncated, its own copy of their edge slots (null
+  // while they are still in the graph's order), kept in slotColumn, which
+  // like the flows below is in the same kind of storage as the graph's
+  // edges (see EdgeStore.IntColumn)
+  Graph.Vertex[] receivers;
+  EdgeStore.IntColumn receiverSlots = null;
+  private EdgeStore.IntColumn slotColumn = null;
+
+  Random random = new Random();
+
+  void setSeed(long seed) { random.setSeed(seed); }
+
+  // the end of the shortest augmenting path found by the last dijkstra
+  Graph.Vertex sinkFrom;
+  long sinkCost;
+
+  // parallelDijkstra's state, indexed like the rest
+  long delta = 1;
+  ExecutorService dijkstraPool;
+  AtomicLongArray distances;
+  int[] phaseSet; // the phase in which each distance was last set
+  int[] stamps;   // for removing duplicates from a phase's list
+  int stamp = 0;
+  AtomicLongArray fromKeys; // phaseSet and id of each sender's from
+
+  int approxUpperBound; // set by Graph.findApproxMatches
+
+  // Graph.findBestFlows' state, for graphs with copies: the units along
+  // each edge (by edge id), the copies of each vertex not yet matched, and
+  // the edges with flow at each vertex, in flowEdges from flowStart, with
+  // room for one per copy
+  EdgeStore.IntColumn flow = null;
+  int[] free = new int[0];
+  int[] flowStart = new int[0];
+  int[] flowCount = new int[0];
+  int[] flowEdges = new int[0];
+
+  // Makes the state fit the current structure of the graph, starting over
+  // (no matches, the receivers and their edges in the graph's order) if it
+  // belonged to another graph or the structure has changed since, except
+  // that a kept matching stays.  Called at the start of every solve.
+  void attach(Graph graph) {
+    if (this.graph == graph && version == graph.version()) return;
+    kept = kept && this.graph == graph;
+    this.graph = graph;
+    version = graph.version();
+
+    int n = 2 * graph.vertexCount();
+    if (match.length < n) {
+      match = new int[n];
+      matchCost = new long[n];
+      price = new long[n];
+      distance = new long[n];
+      from = new int[n];
+      mark = new int[n];
+      activeDegree = new int[n];
+      heapEntry = new Heap.Entry[n];
+      savedMatch = new int[n];
+      savedMatchCost = new long[n];
+      cycleStart = new int[n/2];
+      cycleSize = new int[n/2];
+      savedCycleStart = new int[n/2];
+      savedCycleSize = new int[n/2];
+      kept = false;
+    }
+    if (!kept) Arrays.fill(match, 0, n, NONE);
+    receivers = graph.receivers.clone();
+    receiverSlots = null;
+    distances = null;
+  }
+
+  // makes room for the flow state of the graph
+  void attachFlows(Graph graph) {
+    flow = graph.edgeColumn(flow);
+    int n = 2 * graph.vertexCount();
+    if (free.length < n) {
+      free = new int[n];
+      flowStart = new int[n];
+      flowCount = new int[n];
+    }
+    int size = 0;
+    for (Graph.Vertex v : graph.receivers) {
+      flowStart[v.index] = size;
+      flowStart[v.twin.index] = size + v.copies;
+      size += 2 * v.copies;
+    }
+    if (flowEdges.length < size) flowEdges = new int[size];
+  }
+
+  Graph.Vertex match(Graph.Vertex v) {
+    int m = match[v.index];
+    return m == NONE ? null : graph.vertexAt(m);
+  }
+
+  long matchCost(Graph.Vertex receiver) { return matchCost[receiver.index]; }
+
+  // matches a receiver and a sender along an edge of the given cost
+  void setMatch(Graph.Vertex receiver, Graph.Vertex sender, long cost) {
+    match[receiver.index] = sender.index;
+    match[sender.index] = receiver.index;
+    matchCost[receiver.index] = cost;
+  }
+
+  // the k-th edge of a receiver, in this solve's order
+  int receiverEdge(Graph.Vertex receiver, int k) {
+    if (receiverSlots == null) return graph.receiverEdge(receiver, k);
+    return receiverSlots.get(receiver.firstSlot + k);
+  }
+
+  // the slots to shuffle or reorder, copied from the graph the first time
+  EdgeStore.IntColumn receiverSlots() {
+    if (receiverSlots == null) receiverSlots = slotColumn = graph.receiverSlots(slotColumn);
+    return receiverSlots;
+  }
+
+} // end SolverWorkspace
@@ -0,0 +1,69 @@
+// Trade.java
+
+package tm;
+import java.io.*;
+import java.util.*;
+
+/* A want list file that has been read and checked for fatal errors, but not
+ * yet solved.  A Trade never changes once it has been parsed, so it can be
+ * solved any number of times, from any number of threads, with
+ * TradeMaximizer.solve.
+ */
+public final class Trade {
+
+  private final List< String > options;
+  private List< String[] > wantLists; // null once taken
+  private final List< Integer > lineNumbers;
+  private final Set< String > officialNames; // null if none were given
+
+  Trade(List< String > options, List< String[] > wantLists,
+        List< Integer > lineNumbers, Set< String > officialNames) {
+    this.options = Collections.unmodifiableList(new ArrayList< String >(options));
+    this.wantLists = Collections.unmodifiableList(new ArrayList< String[] >(wantLists));
+    this.lineNumbers = Collections.unmodifiableList(new ArrayList< Integer >(lineNumbers));
+    this.officialNames = officialNames == null ? null
+      : Collections.unmodifiableSet(new HashSet< String >(officialNames));
+  }
+
+  // Reads a want list file.  Throws WantListException for the first fatal
+  // error in the file, and TradeException if it cannot be read at all.
+  public static Trade parse(InputStream input) throws TradeException {
+    return new TradeMaximizer(input, new ByteArrayOutputStream()).readTrade();
+  }
+
+  // Reads several files as one, in the order given, decompressing any that
+  // are gzipped (see LinePipeline).
+  public static Trade parse(File... files) throws TradeException {
+    TradeMaximizer tm = new TradeMaximizer(null, new ByteArrayOutputStream());
+    tm.inputs = new ArrayList< LinePipeline.Source >();
+    for (File file : files) tm.inputs.add(LinePipeline.of(file));
+    return tm.readTrade();
+  }
+
+  // the options declared in the file (#! lines), in order
+  public List< String > getOptions() { return options; }
+
+  public int getWantListCount() { return wantLists.size(); }
+
+  public Set< String > getOfficialNames() { return officialNames; }
+
+  // fresh copies, because building the graph rewrites the want lists
+  List< String[] > copyWantLists() {
+    List< String[] > copy = new ArrayList< String[] >(wantLists.size());
+    for (String[] list : wantLists) copy.add(list.clone());
+    return copy;
+  }
+
+  // The want lists themselves, for a trade that is solved just once (see
+  // TradeMaximizer.ownsTrade), so that building the graph can drop each
+  // one as soon as its edges are stored.  The trade forgets them, and
+  // cannot be solved again.
+  List< String[] > takeWantLists() {
+    List< String[] > lists = new ArrayList< String[] >(wantLists);
+    wantLists = null;
+    return lists;
+  }
+
+  List< Integer > lineNumbers() { return lineNumbers; }
+
+} // end Trade
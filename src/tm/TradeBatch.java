@@ -0,0 +1,255 @@
+// TradeBatch.java
+
+package tm;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Solves many want list files in one JVM, for example a night of dry runs:
+ *
+ *   java -cp tm.jar tm.TradeBatch [options] directory-or-manifest
+ *
+ * A directory means every *.txt file in it; anything else is a manifest
+ * listing one want list file per line (relative to the manifest, with blank
+ * lines and # comments skipped).  Each file's report is written to its own
+ * .out file, and a table of per-trade timings is printed at the end.
+ *
+ * The files are solved on a fixed pool of threads.  Before a job starts it
+ * must also reserve an estimate of the memory it will need from a shared
+ * budget, so a few huge trades cannot run the JVM out of memory by being
+ * solved at the same time.
+ */
+public class TradeBatch {
+
+  public static void main(String[] args) {
+    TradeBatch batch = new TradeBatch();
+    String source = null;
+    for (String arg : args) {
+      if (arg.startsWith("--threads=") && arg.substring(10).matches("[1-9]\\d*"))
+        batch.threads = Integer.parseInt(arg.substring(10));
+      else if (arg.startsWith("--memory=") && arg.substring(9).matches("[1-9]\\d*"))
+        batch.memoryBudget = Long.parseLong(arg.substring(9)) << 20;
+      else if (arg.startsWith("--out="))
+        batch.outputDir = new File(arg.substring(6));
+      else if (!arg.startsWith("--") && source == null)
+        source = arg;
+      else {
+        usage("Unknown argument \"" + arg + "\"");
+      }
+    }
+    if (source == null) usage("Missing directory or manifest");
+
+    try {
+      List< File > files = batch.listFiles(new File(source));
+      List< Job > jobs = batch.solveAll(files);
+      batch.printSummary(jobs, System.out);
+      for (Job job : jobs)
+        if (job.status != Status.OK) System.exit(1);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot read " + source + ": " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  static void usage(String msg) {
+    System.err.println(msg);
+    System.err.println("Usage: java -cp tm.jar tm.TradeBatch [--threads=N] [--memory=MB] [--out=DIR] directory-or-manifest");
+    System.exit(1);
+  }
+
+  int threads = Runtime.getRuntime().availableProcessors();
+  long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3; // bytes
+  File outputDir = null; // null means next to each input file
+
+  //////////////////////////////////////////////////////////////////////
+
+  List< File > listFiles(File source) throws IOException {
+    List< File > files = new ArrayList< File >();
+    if (source.isDirectory()) {
+      File[] found = source.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".txt");
+        }
+      });
+      if (found == null) throw new IOException("cannot list directory");
+      Arrays.sort(found);
+      files.addAll(Arrays.asList(found));
+      return files;
+    }
+
+    BufferedReader in = new BufferedReader(new FileReader(source));
+    try {
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) continue;
+        File file = new File(line);
+        if (!file.isAbsolute()) file = new File(source.getAbsoluteFile().getParentFile(), line);
+        files.add(file);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return files;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  static enum Status { OK, FATAL, FAILED }
+
+  static class Job {
+    File input;
+    File output;
+    long estimate; // bytes reserved from the memory budget
+    Status status;
+    String message = "";
+    int items, trades;
+    long waitTime, parseTime, solveTime; // ms
+  }
+
+  // The memory a trade is expected to need while it is solved: the want
+  // list text and vertices while parsing, then about 25 bytes per edge
+  // plus the solver's per-vertex state.  A generated 5000-item trade
+  // (a 1.3MB file) needed between 16MB and 32MB of heap, so this errs on
+  // the high side of that.
+  static final long BYTES_PER_INPUT_BYTE = 24;
+  static final long BYTES_PER_JOB = 1L << 20;
+
+  long estimateMemory(File file) {
+    return Math.min(memoryBudget, BYTES_PER_JOB + BYTES_PER_INPUT_BYTE * file.length());
+  }
+
+  List< Job > solveAll(List< File > files) {
+    List< Job > jobs = new ArrayList< Job >();
+    for (File file : files) {
+      Job job = new Job();
+      job.input = file;
+      String name = file.getName();
+      if (name.endsWith(".txt")) name = name.substring(0, name.length()-4);
+      File dir = outputDir != null ? outputDir : file.getAbsoluteFile().getParentFile();
+      job.output = new File(dir, name + ".out");
+      job.estimate = estimateMemory(file);
+      jobs.add(job);
+    }
+    if (outputDir != null) outputDir.mkdirs();
+
+    // the budget is counted in KB, so that it fits a Semaphore's permits
+    final Semaphore memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudget >> 10), true);
+    final ThreadLocal< SolverWorkspace > workspaces = new ThreadLocal< SolverWorkspace >() {
+      protected SolverWorkspace initialValue() { return new SolverWorkspace(); }
+    };
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List< Future<?> > futures = new ArrayList< Future<?> >();
+      for (final Job job : jobs) {
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            int permits = (int) Math.min(Integer.MAX_VALUE, job.estimate >> 10);
+            long start = System.currentTimeMillis();
+            memory.acquireUninterruptibly(permits);
+            try {
+              job.waitTime = System.currentTimeMillis() - start;
+              solve(job, workspaces.get());
+            }
+            finally {
+              memory.release(permits);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+    return jobs;
+  }
+
+  void solve(Job job, SolverWorkspace workspace) {
+    String report;
+    long start = System.currentTimeMillis();
+    try {
+      InputStream in = new BufferedInputStream(new FileInputStream(job.input));
+      Trade trade;
+      try {
+        trade = Trade.parse(in);
+      }
+      finally {
+        in.close();
+      }
+      long parsed = System.currentTimeMillis();
+      job.parseTime = parsed - start;
+
+      TradeResult result = TradeMaximizer.solve(trade, workspace);
+      job.solveTime = System.currentTimeMillis() - parsed;
+      job.items = result.getNumItems();
+      job.trades = result.getNumTrades();
+      job.status = Status.OK;
+      report = result.getReport();
+    }
+    catch (TradeException e) {
+      job.status = Status.FATAL;
+      job.message = e.getMessage();
+      report = "FATAL ERROR: " + e.getMessage() + "\n";
+    }
+    catch (Throwable e) { // includes OutOfMemoryError, the rest of the batch can go on
+      job.status = Status.FAILED;
+      job.message = e.toString();
+      report = "FAILED: " + e + "\n";
+    }
+
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(job.output));
+      try {
+        out.write(report);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      job.status = Status.FAILED;
+      job.message = "Cannot write " + job.output + ": " + e.getMessage();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void printSummary(List< Job > jobs, PrintStream out) {
+    int width = 4;
+    for (Job job : jobs) width = Math.max(width, job.input.getName().length());
+
+    out.println(pad("File", width) + "  Status   Items  Trades   Wait ms  Parse ms  Solve ms");
+    int ok = 0;
+    long totalParse = 0, totalSolve = 0;
+    for (Job job : jobs) {
+      out.print(pad(job.input.getName(), width) + "  " + pad(job.status.toString(), 6));
+      if (job.status == Status.OK) {
+        ok++;
+        totalParse += job.parseTime;
+        totalSolve += job.solveTime;
+        out.println(String.format(" %7d %7d %9d %9d %9d", job.items, job.trades,
+                                  job.waitTime, job.parseTime, job.solveTime));
+      }
+      else out.println(" " + job.message);
+    }
+    out.println();
+    out.println("Solved " + ok + " of " + jobs.size() + " files (parse " + totalParse
+                + "ms, solve " + totalSolve + "ms in total)");
+  }
+
+  static String pad(String s, int width) {
+    StringBuilder b = new StringBuilder(s);
+    while (b.length() < width) b.append(' ');
+    return b.toString();
+  }
+
+} // end TradeBatch
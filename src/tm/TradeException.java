@@ -0,0 +1,20 @@
+// TradeException.java
+
+package tm;
+
+/* Thrown when a trade cannot be read or solved.  The message is what the
+ * command line version prints after "FATAL ERROR: ".
+ */
+public class TradeException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  public TradeException(String message) {
+    super(message);
+  }
+
+  public TradeException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+} // end TradeException
@@ -0,0 +1,285 @@
+// TradeFollower.java
+
+package tm;
+import java.io.*;
+import java.util.*;
+
+/* Follows a want list file while the trade is still collecting want lists,
+ * which can take weeks:
+ *
+ *   java -cp tm.jar tm.TradeFollower [options] wantlistfile
+ *
+ * The file is polled for new lines ("-" reads standard input instead, as it
+ * arrives), and each line is read and checked as soon as it is complete.
+ * A fatal error only leaves that line out, so its owner can still send a
+ * corrected want list.  The items and their wants go into a
+ * ComponentTracker as they arrive, so the number of items that could trade
+ * stays up to date without rebuilding anything.
+ *
+ * Whenever the input has been quiet for a poll, and the last snapshot is old
+ * enough, a snapshot solve runs on everything read so far and reports the
+ * number of trades.  With --cache, the snapshots also keep the component
+ * cache filled, so the solve at the close only has to solve the components
+ * that have changed since the last snapshot.  The trade closes at the end of
+ * standard input, or, when following a file, when a line is typed at the
+ * console; the final report is then printed as TradeMaximizer prints it.
+ * (Stopping the follower and running TradeMaximizer with the same --cache
+ * works just as well.)
+ */
+public class TradeFollower {
+
+  public static void main(String[] args) {
+    TradeFollower follower = new TradeFollower();
+    String source = null;
+    for (String arg : args) {
+      if (arg.startsWith("--poll=") && arg.substring(7).matches("[1-9]\\d*"))
+        follower.pollMillis = Long.parseLong(arg.substring(7)) * 1000;
+      else if (arg.startsWith("--snapshot=") && arg.substring(11).matches("\\d+"))
+        follower.snapshotMillis = Long.parseLong(arg.substring(11)) * 1000;
+      else if (arg.startsWith("--cache=") && arg.length() > 8)
+        follower.cacheDir = new File(arg.substring(8));
+      else if (arg.startsWith("--cache-limit=") && arg.substring(14).matches("[1-9]\\d*"))
+        follower.cacheLimit = Long.parseLong(arg.substring(14)) << 20;
+      else if ((arg.equals("-") || !arg.startsWith("--")) && source == null)
+        source = arg;
+      else
+        usage("Unknown argument \"" + arg + "\"");
+    }
+    if (source == null) usage("Missing want list file");
+
+    try {
+      if (source.equals("-")) follower.followInput(System.in);
+      else follower.followFile(new File(source));
+      follower.close();
+    }
+    catch (IOException e) {
+      System.err.println("Cannot read " + source + ": " + e.getMessage());
+      System.exit(1);
+    }
+    catch (TradeException e) {
+      System.out.println();
+      System.out.println("FATAL ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  static void usage(String msg) {
+    System.err.println(msg);
+    System.err.println("Usage: java -cp tm.jar tm.TradeFollower [--poll=SECONDS] [--snapshot=SECONDS] [--cache=DIR [--cache-limit=MB]] wantlistfile|-");
+    System.exit(1);
+  }
+
+  long pollMillis = 5000;
+  long snapshotMillis = 600000; // the least time between snapshots, 0 for none
+  File cacheDir = null;
+  long cacheLimit = 100L << 20; // bytes
+
+  PrintStream out = System.out;
+
+  //////////////////////////////////////////////////////////////////////
+
+  // Reads and checks the lines (see TradeMaximizer.readLine), and holds on
+  // to the options, official names and line numbers for the solves.
+  private final TradeMaximizer reader = new TradeMaximizer(null, new ByteArrayOutputStream());
+  private final List< String[] > wantLists = new ArrayList< String[] >();
+  private int lineNumber = 0;
+
+  private final ComponentTracker tracker = new ComponentTracker();
+  private final Map< String,Integer > itemNumbers = new HashMap< String,Integer >();
+  private final List< String > owners = new ArrayList< String >(); // by item number
+  // wants of items that have no want list yet, by the name of the item wanted
+  private final Map< String,List< Integer > > waiting = new HashMap< String,List< Integer > >();
+
+  private boolean changed = false;  // since the last status line
+  private boolean unsolved = false; // since the last snapshot
+  private long lastSnapshot = 0;
+  private final SolverWorkspace workspace = new SolverWorkspace();
+
+  void readLine(String line) {
+    lineNumber++;
+    int before = wantLists.size();
+    try {
+      reader.readLine(line, lineNumber, wantLists);
+    }
+    catch (WantListException e) {
+      out.println("FATAL ERROR: " + e.getMessage() + ", line left out");
+      return;
+    }
+    if (wantLists.size() > before) track(wantLists.get(before));
+    changed = unsolved = true;
+  }
+
+  // Adds a want list to the tracker, resolving the names as
+  // TradeMaximizer.buildGraph and resolveWants do.  Lists that the solve
+  // would ignore are ignored, and wants for items that have no want list
+  // yet wait for one.
+  private void track(String[] list) {
+    String user = null;
+    int first = 0;
+    if (list[0].charAt(0) == '(') {
+      user = list[0].replaceAll("#"," ");
+      first = 1;
+    }
+    String name = list[first];
+    int copies = reader.copiesIn(name);
+    if (copies == 0) return; // a count the solve rejects
+    name = reader.itemName(name);
+    boolean isDummy = name.charAt(0) == '%';
+    if (isDummy && copies > 1) return;
+    if (isDummy && user != null && reader.allowDummies) name += " for user " + user;
+    if (reader.officialNames != null && !reader.officialNames.contains(name) && !isDummy) return;
+    if (itemNumbers.containsKey(name)) return; // only the first list counts
+
+    int item = tracker.addItem(isDummy, copies);
+    itemNumbers.put(name, item);
+    owners.add(user);
+    List< Integer > wanters = waiting.remove(name);
+    if (wanters != null)
+      for (int from : wanters) addWant(from, item);
+
+    for (int i = first+1; i < list.length; i++) {
+      String toName = list[i];
+      if (toName.equals(";")) continue;
+      if (toName.indexOf('=') >= 0) {
+        if (reader.priorityScheme != TradeMaximizer.EXPLICIT_PRIORITIES) continue;
+        toName = toName.substring(0, toName.indexOf('='));
+      }
+      if (toName.length() == 0) continue;
+      if (toName.charAt(0) == '%') {
+        if (user == null) continue;
+        toName += " for user " + user;
+      }
+      Integer to = itemNumbers.get(toName);
+      if (to != null) addWant(item, to);
+      else {
+        List< Integer > others = waiting.get(toName);
+        if (others == null) waiting.put(toName, others = new ArrayList< Integer >());
+        others.add(item);
+      }
+    }
+  }
+
+  private void addWant(int from, int to) {
+    if (from == to) return;
+    String user = owners.get(from);
+    if (user != null && !tracker.isDummy(to) && user.equals(owners.get(to))) return; // same user
+    tracker.addWant(from, to);
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // reads standard input (or any stream) to the end
+  void followInput(InputStream input) throws IOException, TradeException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(input));
+    for (String line = in.readLine(); line != null; line = in.readLine()) {
+      readLine(line);
+      if (!in.ready()) quiet();
+    }
+  }
+
+  // polls the file for new lines until a line is typed at the console
+  void followFile(File file) throws IOException, TradeException {
+    final boolean[] closed = { false };
+    Thread console = new Thread(new Runnable() {
+      public void run() {
+        try {
+          // the end of standard input does not close the trade, so the
+          // follower can also run in the background
+          if (new BufferedReader(new InputStreamReader(System.in)).readLine() == null) return;
+        }
+        catch (IOException e) {
+          return;
+        }
+        synchronized (closed) {
+          closed[0] = true;
+          closed.notifyAll();
+        }
+      }
+    });
+    console.setDaemon(true);
+    console.start();
+    out.println("Following " + file + "; press Enter to close the trade.");
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      ByteArrayOutputStream partial = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1 << 16];
+      while (true) {
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          for (int i = 0; i < n; i++) {
+            if (buffer[i] != '\n') partial.write(buffer[i]);
+            else {
+              readLine(stripReturn(partial.toString()));
+              partial.reset();
+            }
+          }
+        }
+        synchronized (closed) {
+          if (closed[0]) break;
+        }
+        quiet();
+        synchronized (closed) {
+          if (!closed[0]) {
+            try {
+              closed.wait(pollMillis);
+            }
+            catch (InterruptedException e) {
+              break;
+            }
+          }
+        }
+      }
+      // the last line need not end with a newline once the trade is closed
+      if (partial.size() > 0) readLine(stripReturn(partial.toString()));
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static String stripReturn(String line) {
+    return line.endsWith("\r") ? line.substring(0, line.length()-1) : line;
+  }
+
+  // the input has caught up: print the status, and take a snapshot if due
+  private void quiet() throws TradeException {
+    if (changed) {
+      out.println("Read " + wantLists.size() + " want lists: up to " + tracker.tradeable()
+                  + " items can trade, in " + tracker.components() + " groups (largest "
+                  + tracker.largest() + " items)");
+      changed = false;
+    }
+    long now = System.currentTimeMillis();
+    if (unsolved && snapshotMillis > 0 && now - lastSnapshot >= snapshotMillis) {
+      ComponentCache cache = cacheDir == null ? null : new ComponentCache(cacheDir, cacheLimit);
+      TradeResult result = solve(cache, new ByteArrayOutputStream());
+      out.print("Snapshot: " + result.getNumTrades() + " trades");
+      if (cache != null)
+        out.print(", reused " + cache.hits + " of " + cache.components + " components");
+      out.println(" (" + (System.currentTimeMillis() - now) + "ms)");
+      lastSnapshot = System.currentTimeMillis();
+      unsolved = false;
+    }
+  }
+
+  // the final solve, with the usual report
+  void close() throws TradeException {
+    out.println("Closed after " + lineNumber + " lines.");
+    out.println();
+    ComponentCache cache = cacheDir == null ? null : new ComponentCache(cacheDir, cacheLimit);
+    solve(cache, out);
+    out.flush();
+  }
+
+  private TradeResult solve(ComponentCache cache, OutputStream report) throws TradeException {
+    Trade trade = new Trade(reader.options, wantLists, reader.lineNumbers, reader.officialNames);
+    TradeMaximizer tm = new TradeMaximizer(null, report);
+    tm.cache = cache;
+    PrintStream header = new PrintStream(report);
+    header.println("TradeMaximizer " + tm.version);
+    header.flush();
+    return tm.solve(trade, Collections.< String >emptyList(), workspace);
+  }
+
+} // end TradeFollower
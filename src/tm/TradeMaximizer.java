@@ -3,80 +3,207 @@
 
 package tm;
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 
 
 public class TradeMaximizer {
 
   private PrintStream out;
-  private InputStream input;
+
+  // the want list files, read one after another as if they were one file
+  List< LinePipeline.Source > inputs;
+  Charset charset = Charset.defaultCharset();
   
   public TradeMaximizer() {
     this.out = System.out;
-    this.input = System.in;
+    this.inputs = Collections.singletonList(LinePipeline.of(System.in, "standard input"));
+    this.graph = new Graph(out);
   }
 
   public TradeMaximizer(InputStream input, OutputStream output) {
     this.out = new PrintStream(output);
-    this.input = input;
+    this.inputs = Collections.singletonList(LinePipeline.of(input, "input"));
+    this.graph = new Graph(out);
   }
   
   public static void main(String[] args) throws IOException {
     TradeMaximizer mainInstance = new TradeMaximizer();
-    mainInstance.run();
+    File cacheDir = null;
+    long cacheLimit = 100L << 20; // bytes
+    String workers = null;
+    List< LinePipeline.Source > inputs = new ArrayList< LinePipeline.Source >();
+    boolean readsStandardInput = false;
+    for (String arg : args) {
+      if (arg.equals("--check"))
+        mainInstance.checkOnly = true;
+      else if (arg.equals("--preview"))
+        mainInstance.previewOnly = true;
+      else if (arg.equals("--sensitivity"))
+        mainInstance.sensitivityOnly = true;
+      else if (arg.equals("--edge-store=heap"))
+        mainInstance.graph.edgeStoreKind = EdgeStore.Kind.HEAP;
+      else if (arg.equals("--edge-store=direct"))
+        mainInstance.graph.edgeStoreKind = EdgeStore.Kind.DIRECT;
+      else if (arg.equals("--edge-store=mapped"))
+        mainInstance.graph.edgeStoreKind = EdgeStore.Kind.MAPPED;
+      else if (arg.startsWith("--cache=") && arg.length() > 8)
+        cacheDir = new File(arg.substring(8));
+      else if (arg.startsWith("--cache-limit=") && arg.substring(14).matches("[1-9]\\d*"))
+        cacheLimit = Long.parseLong(arg.substring(14)) << 20;
+      else if (arg.startsWith("--workers=") && arg.length() > 10)
+        workers = arg.substring(10);
+      else if (arg.startsWith("--charset=") && arg.substring(10).matches("[\\w.:+-]+")
+               && Charset.isSupported(arg.substring(10)))
+        mainInstance.charset = Charset.forName(arg.substring(10));
+      else if (arg.equals("-")) {
+        // two readers would each take some of its lines
+        if (readsStandardInput) {
+          System.err.println("Standard input (\"-\") can only be read once");
+          System.exit(1);
+        }
+        readsStandardInput = true;
+        inputs.add(LinePipeline.of(System.in, "standard input"));
+      }
+      else if (!arg.startsWith("--"))
+        inputs.add(LinePipeline.of(new File(arg)));
+      else {
+        System.err.println("Unknown argument \"" + arg + "\"");
+        System.err.println("Usage: java -jar tm.jar [--check | --preview | --sensitivity] [--edge-store=heap|direct|mapped] [--cache=DIR [--cache-limit=MB]] [--workers=N|host:port,...] [--charset=NAME] [wantlistfile ...] [< wantlistfile]");
+        System.exit(1);
+      }
+    }
+    if (inputs.size() > 0) mainInstance.inputs = inputs;
+    if (cacheDir != null) mainInstance.cache = new ComponentCache(cacheDir, cacheLimit);
+    // the exit status is only set once the workers are stopped, since
+    // System.exit would skip the finally block that stops them
+    int status = 0;
+    try {
+      if (workers != null && !mainInstance.checkOnly && !mainInstance.previewOnly
+          && !mainInstance.sensitivityOnly) {
+        try {
+          if (workers.matches("[1-9]\\d*"))
+            mainInstance.workers = WorkerPool.launch(Integer.parseInt(workers));
+          else
+            mainInstance.workers = WorkerPool.connect(workers);
+        }
+        catch (IllegalArgumentException e) {
+          System.err.println(e.getMessage());
+          System.exit(1);
+        }
+        catch (IOException e) {
+          System.err.println("Cannot start workers: " + e.getMessage());
+          System.exit(1);
+        }
+      }
+
+      if (mainInstance.checkOnly) {
+        if (!mainInstance.check()) status = 1;
+      }
+      else if (mainInstance.previewOnly) mainInstance.preview();
+      else if (mainInstance.sensitivityOnly) mainInstance.sensitivity();
+      else mainInstance.run();
+    }
+    catch (TradeException e) {
+      mainInstance.out.println();
+      mainInstance.out.println("FATAL ERROR: " + e.getMessage());
+      status = 1;
+    }
+    finally {
+      if (mainInstance.workers != null) mainInstance.workers.close();
+      mainInstance.graph.close();
+    }
+    if (status != 0) System.exit(status);
   }
 
   final String version = "Version 1.3c (dev)";
 
-  public void run() {
+  // the command line version: prints the report to out as it goes
+  public void run() throws TradeException {
     out.println("TradeMaximizer " + version);
+    ownsTrade = true;
+    solve(readTrade(), Collections.<String>emptyList(), new SolverWorkspace());
+  }
 
-    List< String[] > wantLists = readWantLists();
-    if (wantLists == null) return;
-    if (options.size() > 0) {
-      out.print("Options:");
-      for (String option : options) out.print(" "+option);
-      out.println();
-    }
-    out.println();
+  // The library version.  Solves a parsed trade, applying any extra options
+  // (written as in a #! line, e.g. "ITERATIONS=100") after the trade's own.
+  // Options that only affect reading the file, such as CASE-SENSITIVE, make
+  // no difference here.  Safe to call from several threads at once, as long
+  // as each thread passes its own workspace.
+  public static TradeResult solve(Trade trade, SolverWorkspace workspace, String... options)
+      throws TradeException {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    TradeMaximizer tm = new TradeMaximizer(null, report);
+    tm.out.println("TradeMaximizer " + tm.version);
+    TradeResult result = tm.solve(trade, Arrays.asList(options), workspace);
+    tm.out.flush();
+    result.report = report.toString();
+    return result;
+  }
 
-    buildGraph(wantLists);
-    if (showMissing && officialNames != null && officialNames.size() > 0) {
-      for (String name : usedNames) officialNames.remove(name);
-      List<String> missing = new ArrayList<String>(officialNames);
-      Collections.sort(missing);
-      for (String name : missing) {
-        out.println("**** Missing want list for official name " +name);
-      }
-      out.println();
+  public static TradeResult solve(Trade trade, String... options) throws TradeException {
+    return solve(trade, new SolverWorkspace(), options);
+  }
+
+  TradeResult solve(Trade trade, List< String > extraOptions, SolverWorkspace workspace)
+      throws TradeException {
+    try {
+      return solveAndReport(trade, extraOptions, workspace);
     }
-    if (showErrors && errors.size() > 0) {
-      Collections.sort(errors);
-      out.println("ERRORS:");
-      for (String error : errors) out.println(error);
-      out.println();
+    finally {
+      // nothing solves the graph again, so a mapped edge store can go now,
+      // rather than when the JVM exits
+      graph.close();
     }
+  }
+
+  private TradeResult solveAndReport(Trade trade, List< String > extraOptions,
+                                     SolverWorkspace workspace) throws TradeException {
+    load(trade, extraOptions);
 
     long startTime = System.currentTimeMillis();
-    graph.shrink(shrinkLevel, shrinkVerbose);
+    graph.workspace = workspace;
+    if (seed != 0) workspace.setSeed(seed);
+    // the approximate engine only needs the strongly connected components;
+    // shrinking and kernelizing both solve exactly
+    graph.approx = approxEngine;
+    graph.shrink(approxEngine ? 0 : shrinkLevel, shrinkVerbose);
+    if (kernelize && !approxEngine) graph.kernelize();
     if (showWants) printWants();
 
-    List<List<Graph.Vertex>> bestCycles = graph.findCycles();
-    int bestSumSquares = sumOfSquares(bestCycles);
+    // the cache only holds one matching per component, so it is left out
+    // of the iterations, which look for others
+    graph.cache = cache;
+    graph.workers = workers;
+    graph.findCycles(workspace);
+    graph.cache = null;
+    if (cache != null) {
+      out.println("Component cache: reused " + cache.hits + " of " + cache.components
+                  + " components (" + cache.receiverHits + " of " + cache.receivers + " items)");
+    }
+    if (workers != null) {
+      out.println("Workers: solved " + workers.solved + " of " + workers.components
+                  + " components (" + workers.redispatched + " re-dispatched)");
+    }
+    // the iterations only count the cycles, and the lists are made for the best
     if (iterations > 1) {
-      graph.saveMatches();
+      int bestSumSquares = sumOfSquares(workspace);
+      int bestTrades = numTrades(workspace);
+      graph.saveMatches(workspace);
       for (int i = 0; i < iterations-1; i++) {
-        graph.shuffle();
-        List<List<Graph.Vertex>> cycles = graph.findCycles();
-        int sumSquares = sumOfSquares(cycles);
-        if (sumSquares < bestSumSquares) {
+        graph.shuffle(workspace);
+        int count = graph.findCycles(workspace);
+        int sumSquares = sumOfSquares(workspace);
+        // approximate solutions can differ in the number of trades too
+        int trades = numTrades(workspace);
+        if (approxEngine && trades != bestTrades ? trades > bestTrades
+                                                 : sumSquares < bestSumSquares) {
           bestSumSquares = sumSquares;
-          bestCycles = cycles;
-          graph.saveMatches();
-          int[] groups = new int[cycles.size()];
-          for (int j = 0; j < cycles.size(); j++)
-            groups[j] = cycles.get(j).size();
+          bestTrades = trades;
+          graph.saveMatches(workspace);
+          int[] groups = Arrays.copyOf(workspace.cycleSize, count);
           Arrays.sort(groups);
           out.print("[ "+sumSquares + " :");
           for (int j = groups.length-1; j >= 0; j--)
@@ -86,18 +213,218 @@ public class TradeMaximizer {
       }
       out.println("Completed " + iterations + " iterations.");
       out.println();
-      graph.restoreMatches();
+      graph.restoreMatches(workspace);
     }
+    List<List<Graph.Vertex>> bestCycles = graph.collectCycles(workspace);
     long stopTime = System.currentTimeMillis();
-    displayMatches(bestCycles);
+    TradeResult result = displayMatches(bestCycles, workspace);
+    if (approxEngine && showStats) {
+      int items = 0;
+      for (Graph.Vertex v : graph.receivers) if (!v.isDummy) items++;
+      int bound = Math.min(workspace.approxUpperBound, items);
+      out.println("Upper bound = " + bound + " trades (ENGINE=APPROX found "
+                  + result.getNumTrades() + ", gap " + (bound - result.getNumTrades()) + ")");
+    }
 
     if (showElapsedTime)
       out.println("Elapsed time = " + (stopTime-startTime) + "ms");
+    return result;
+  }
+
+  // Set by the command line, which reads its trade for a single solve:
+  // load then takes the want lists from the trade instead of copying them,
+  // so that nothing holds on to them once their edges are built.
+  boolean ownsTrade = false;
+
+  // apply the options and build the graph, reporting any errors
+  void load(Trade trade, List< String > extraOptions) throws TradeException {
+    List< String > allOptions = new ArrayList< String >(trade.getOptions());
+    for (String option : extraOptions) allOptions.add(option.trim().toUpperCase());
+    for (String option : allOptions) applyOption(option, 0);
+    options = allOptions;
+    if (trade.getOfficialNames() != null)
+      officialNames = new HashSet< String >(trade.getOfficialNames());
+    lineNumbers = trade.lineNumbers();
+    List< String[] > wantLists = ownsTrade ? trade.takeWantLists() : trade.copyWantLists();
+
+    if (options.size() > 0) {
+      out.print("Options:");
+      for (String option : options) out.print(" "+option);
+      out.println();
+    }
+    out.println();
+
+    buildGraph(wantLists);
+    if (showMissing && officialNames != null && officialNames.size() > 0)
+      printMissing();
+    if (showErrors && errors.size() > 0) printErrors();
   }
 
-  int sumOfSquares(List<List<Graph.Vertex>> cycles) {
+  void printMissing() {
+    for (String name : usedNames) officialNames.remove(name);
+    List<String> missing = new ArrayList<String>(officialNames);
+    Collections.sort(missing);
+    for (String name : missing) {
+      out.println("**** Missing want list for official name " +name);
+    }
+    out.println();
+  }
+
+  void printErrors() {
+    Collections.sort(errors);
+    out.println("ERRORS:");
+    for (String error : errors) out.println(error);
+    out.println();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // --check: read and resolve the want lists exactly as run() would, but
+  // keep going after fatal errors and stop before anything is solved.
+  // Every fatal error and every error is reported with its line number,
+  // regardless of HIDE-ERRORS and HIDE-REPEATS.  Returns false if there
+  // were any fatal errors.
+  boolean checkOnly = false;
+  List< String > fatalErrors = new ArrayList< String >();
+
+  public boolean check() throws TradeException {
+    out.println("TradeMaximizer " + version);
+
+    List< String[] > wantLists = readWantLists();
+    if (options.size() > 0) {
+      out.print("Options:");
+      for (String option : options) out.print(" "+option);
+      out.println();
+    }
+    out.println();
+
+    showRepeats = true;
+    buildGraph(wantLists); // stops short of building any edges
+    if (officialNames != null && officialNames.size() > 0) printMissing();
+    if (errors.size() > 0) printErrors();
+    if (fatalErrors.size() > 0) {
+      out.println("FATAL ERRORS:");
+      for (String error : fatalErrors) out.println(error);
+      out.println();
+    }
+
+    out.println("Checked " + wantLists.size() + " want lists: "
+                + fatalErrors.size() + " fatal errors, "
+                + errors.size() + " errors");
+    return fatalErrors.size() == 0;
+  }
+
+  // thrown by fatalError in --check mode to abandon the rest of a line
+  private static class SkipLine extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  // the line each want list was read from, tagged onto errors in --check mode
+  List< Integer > lineNumbers = new ArrayList< Integer >();
+
+  String atLine(int wantListIndex) {
+    if (!checkOnly) return "";
+    return " (line " + lineNumbers.get(wantListIndex) + ")";
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  // --preview: the most items that can trade, plus the sizes of the
+  // strongly connected components, without the weighted solve.  Priorities
+  // are ignored, and so is NONTRADE-COST (a small one can make the real
+  // solve give up some trades).
+  boolean previewOnly = false;
+
+  public void preview() throws TradeException {
+    out.println("TradeMaximizer " + version);
+    ownsTrade = true;
+    load(readTrade(), Collections.<String>emptyList());
+
+    long startTime = System.currentTimeMillis();
+    graph.removeImpossibleEdgesAndOrphans();
+    int[] sizes = graph.componentSizes();
+    int maxTrades = graph.previewMaxTrades(graph.workspace);
+    long stopTime = System.currentTimeMillis();
+
+    // sizes are in decreasing order
+    int[] limits = { 2, 3, 10, 100, 1000, Integer.MAX_VALUE };
+    String[] labels = { "2", "3-9", "10-99", "100-999", "1000+" };
+    out.println("Cannot trade = " + graph.orphans.size() + " items");
+    out.print("Components  = " + sizes.length);
+    if (sizes.length > 0) out.print(" (largest " + sizes[0] + " items)");
+    out.println();
+    out.print("Sizes       =");
+    for (int k = 0; k < labels.length; k++) {
+      int count = 0;
+      for (int size : sizes)
+        if (size >= limits[k] && size < limits[k+1]) count++;
+      if (count > 0) out.print(" " + labels[k] + ":" + count);
+    }
+    out.println();
+
+    int items = ITEMS-DUMMY_ITEMS;
+    out.print("Max trades  = " + maxTrades + " of " + items + " items");
+    if (items == 0) out.println();
+    else out.println(new DecimalFormat(" (0.0%)").format(maxTrades/(double)items));
+
+    if (showElapsedTime)
+      out.println("Elapsed time = " + (stopTime-startTime) + "ms");
+  }
+
+  // --sensitivity: instead of the usual report, one solve and then, for
+  // every item that does not trade, the least extra cost that would make it
+  // trade and the trade that would do it (see Graph.sensitivity).  No
+  // shrinking, kernelizing or iterations, since the solve must keep its
+  // prices.
+  boolean sensitivityOnly = false;
+
+  public void sensitivity() throws TradeException {
+    out.println("TradeMaximizer " + version);
+    ownsTrade = true;
+    load(readTrade(), Collections.<String>emptyList());
+
+    long startTime = System.currentTimeMillis();
+    graph.removeImpossibleEdgesAndOrphans();
+    graph.findBestMatches(graph.workspace);
+    List<Graph.Sensitivity> items = graph.sensitivity(graph.workspace);
+    long stopTime = System.currentTimeMillis();
+
+    List< String > lines = new ArrayList< String >();
+    for (Graph.Sensitivity item : items) {
+      String line = pad(show(item.item));
+      if (item.extraCost < 0) {
+        lines.add(line + " cannot trade");
+        continue;
+      }
+      int others = Math.abs(item.stops);
+      if (item.stops != 0)
+        line += " " + others + (others == 1 ? " other item " : " other items ")
+          + (item.stops > 0 ? "stop" : "start") + (others == 1 ? "s" : "") + " trading,";
+      line += String.format(" total cost %+d:", item.tradeCost) + " receives " + show(item.receives.twin)
+        + " and sends to " + show(item.sendsTo);
+      lines.add(line);
+    }
+    Collections.sort(lines);
+    out.println("SENSITIVITY (" + items.size() + " items that do not trade, with what it would take to trade):");
+    out.println();
+    for (String line : lines) out.println(line);
+    out.println();
+
+    if (showElapsedTime)
+      out.println("Elapsed time = " + (stopTime-startTime) + "ms");
+  }
+
+  // of the cycles left in the workspace by Graph.findCycles
+  int numTrades(SolverWorkspace workspace) {
+    int sum = 0;
+    for (int i = 0; i < workspace.cycleCount; i++) sum += workspace.cycleSize[i];
+    return sum;
+  }
+
+  int sumOfSquares(SolverWorkspace workspace) {
     int sum = 0;
-    for (List<Graph.Vertex> cycle : cycles) sum += cycle.size()*cycle.size();
+    for (int i = 0; i < workspace.cycleCount; i++)
+      sum += workspace.cycleSize[i]*workspace.cycleSize[i];
     return sum;
   }
 
@@ -113,6 +440,7 @@ public class TradeMaximizer {
   boolean showMissing = false;
   boolean sortByItem = false;
   boolean allowDummies = false;
+  boolean allowCopies = false; // NAME*K for K copies, see Graph.addCopies
   boolean showElapsedTime = false;
   boolean showWants = false;
 
@@ -128,9 +456,18 @@ public class TradeMaximizer {
   int bigStep = 9;
   long nonTradeCost = 1000000000L; // 1 billion
 
+  // the --cache directory of component matchings from earlier runs
+  ComponentCache cache = null;
+
+  // the --workers processes that solve the large components
+  WorkerPool workers = null;
+
   int iterations = 1;
+  long seed = 0; // SEED, 0 if none
   int shrinkLevel = 0;
   boolean shrinkVerbose = false;
+  boolean kernelize = false;
+  boolean approxEngine = false; // ENGINE=APPROX, see Graph.findApproxMatches
 
   //////////////////////////////////////////////////////////////////////
 
@@ -138,232 +475,295 @@ public class TradeMaximizer {
   HashSet<String> officialNames = null;
   List<String> usedNames = new ArrayList<String>();
 
-  List<String[]> readWantLists() {
-    boolean bigStepFlag = false, smallStepFlag = false;
+  // one option from a #! line, or from solve() with lineNumber 0
+  void applyOption(String option, int lineNumber) throws WantListException {
+    if (option.equals("CASE-SENSITIVE"))
+      caseSensitive = true;
+    else if (option.equals("REQUIRE-COLONS"))
+      requireColons = true;
+    else if (option.equals("REQUIRE-USERNAMES"))
+      requireUsernames = true;
+    else if (option.equals("HIDE-ERRORS"))
+      showErrors = false;
+    else if (option.equals("HIDE-REPEATS"))
+      showRepeats = false;
+    else if (option.equals("HIDE-LOOPS"))
+      showLoops = false;
+    else if (option.equals("HIDE-SUMMARY"))
+      showSummary = false;
+    else if (option.equals("HIDE-NONTRADES"))
+      showNonTrades = false;
+    else if (option.equals("HIDE-STATS"))
+      showStats = false;
+    else if (option.equals("SHOW-MISSING"))
+      showMissing = true;
+    else if (option.equals("SORT-BY-ITEM"))
+      sortByItem = true;
+    else if (option.equals("ALLOW-DUMMIES"))
+      allowDummies = true;
+    else if (option.equals("ALLOW-COPIES"))
+      allowCopies = true;
+    else if (option.equals("SHOW-ELAPSED-TIME"))
+      showElapsedTime = true;
+    else if (option.equals("NO-PRIORITIES"))
+      priorityScheme = NO_PRIORITIES;
+    else if (option.equals("LINEAR-PRIORITIES"))
+      priorityScheme = LINEAR_PRIORITIES;
+    else if (option.equals("TRIANGLE-PRIORITIES"))
+      priorityScheme = TRIANGLE_PRIORITIES;
+    else if (option.equals("SQUARE-PRIORITIES"))
+      priorityScheme = SQUARE_PRIORITIES;
+    else if (option.equals("SCALED-PRIORITIES")) {
+      fatalError("SCALED-PRIORITIES no longer supported!",lineNumber);
+    }
+    else if (option.equals("EXPLICIT-PRIORITIES"))
+      priorityScheme = EXPLICIT_PRIORITIES;
+    else if (option.startsWith("SMALL-STEP=")) {
+      String num = option.substring(11);
+      if (!num.matches("\\d+"))
+        fatalError("SMALL-STEP argument must be a non-negative integer",lineNumber);
+      smallStep = Integer.parseInt(num);
+    }
+    else if (option.startsWith("BIG-STEP=")) {
+      String num = option.substring(9);
+      if (!num.matches("\\d+"))
+        fatalError("BIG-STEP argument must be a non-negative integer",lineNumber);
+      bigStep = Integer.parseInt(num);
+    }
+    else if (option.startsWith("NONTRADE-COST=")) {
+      String num = option.substring(14);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("NONTRADE-COST argument must be a positive integer",lineNumber);
+      if (num.length() > 17 || Long.parseLong(num) > Graph.MAX_COST)
+        fatalError("NONTRADE-COST argument must be at most 10^16",lineNumber);
+      nonTradeCost = Long.parseLong(num);
+    }
+    else if (option.startsWith("ITERATIONS=")) {
+      String num = option.substring(11);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("ITERATIONS argument must be a positive integer",lineNumber);
+      iterations = Integer.parseInt(num);
+    }
+    else if (option.startsWith("SEED=")) {
+      String num = option.substring(5);
+      if (!num.matches("[1-9]\\d*"))
+        fatalError("SEED argument must be a positive integer",lineNumber);
+      seed = Long.parseLong(num);
+    }
+    else if (option.startsWith("SHRINK=")) {
+      String num = option.substring(7);
+      if (!num.matches("[0-9]")) {
+        fatalError("SHRINK argument must be a single digit",lineNumber);
+      }
+      shrinkLevel = Integer.parseInt(num);
+    }
+    else if (option.equals("SHRINK-VERBOSE")) {
+      shrinkVerbose = true;
+    }
+    else if (option.equals("SHOW-WANTS")) {
+      showWants = true;
+    }
+    else if (option.equals("KERNELIZE")) {
+      kernelize = true;
+    }
+    else if (option.startsWith("DIJKSTRA-THREADS=")) {
+      String num = option.substring(17);
+      if (!num.matches("\\d+"))
+        fatalError("DIJKSTRA-THREADS argument must be a non-negative integer",lineNumber);
+      graph.dijkstraThreads = Integer.parseInt(num);
+    }
+    else if (option.equals("MULTIPLE-AUGMENTATIONS")) {
+      graph.multipleAugmentations = true;
+    }
+    else if (option.equals("WARM-START")) {
+      graph.warmStart = true;
+    }
+    else if (option.equals("KEEP-SHRINK-SOLVE")) {
+      graph.keepShrinkSolve = true;
+    }
+    else if (option.equals("COMPACT-LAYOUT")) {
+      graph.compactLayout = true;
+    }
+    else if (option.startsWith("TRUNCATE-WANTS=")) {
+      String num = option.substring(15);
+      if (!num.matches("\\d+"))
+        fatalError("TRUNCATE-WANTS argument must be a non-negative integer",lineNumber);
+      graph.truncatedWants = Integer.parseInt(num);
+    }
+    else if (option.startsWith("ENGINE=")) {
+      String engine = option.substring(7);
+      if (engine.equals("EXACT")) approxEngine = false;
+      else if (engine.equals("APPROX")) approxEngine = true;
+      else fatalError("ENGINE argument must be EXACT or APPROX",lineNumber);
+    }
+    else
+      fatalError("Unknown option \""+option+"\"",lineNumber);
+  }
+
+  Trade readTrade() throws TradeException {
+    List< String[] > wantLists = readWantLists();
+    return new Trade(options, wantLists, lineNumbers, officialNames);
+  }
+
+  List<String[]> readWantLists() throws TradeException {
+    LinePipeline in = new LinePipeline(inputs, charset);
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(input));
       List<String[]> wantLists = new ArrayList<String[]>();
-      boolean readingOfficialNames = false;
 
       for (int lineNumber = 1;;lineNumber++) {
         String line = in.readLine();
         if (line == null) return wantLists;
+        readLine(line, lineNumber, wantLists);
+      }
+    }
+    catch(IOException e) {
+      throw new TradeException(e.getMessage(), e);
+    }
+    catch(RuntimeException e) {
+      throw new TradeException(e.getMessage(), e);
+    }
+    finally {
+      in.close();
+    }
+  }
 
-        line = line.trim();
-        if (line.length() == 0) continue; // skip blank link
-        if (line.matches("#!.*")) { // declare options
-          if (wantLists.size() > 0)
-            fatalError("Options (#!...) cannot be declared after first real want list", lineNumber);
-          if (officialNames != null)
-            fatalError("Options (#!...) cannot be declared after official names", lineNumber);
-          for (String option : line.toUpperCase().substring(2).trim().split("\\s+")) {
-            if (option.equals("CASE-SENSITIVE"))
-              caseSensitive = true;
-            else if (option.equals("REQUIRE-COLONS"))
-              requireColons = true;
-            else if (option.equals("REQUIRE-USERNAMES"))
-              requireUsernames = true;
-            else if (option.equals("HIDE-ERRORS"))
-              showErrors = false;
-            else if (option.equals("HIDE-REPEATS"))
-              showRepeats = false;
-            else if (option.equals("HIDE-LOOPS"))
-              showLoops = false;
-            else if (option.equals("HIDE-SUMMARY"))
-              showSummary = false;
-            else if (option.equals("HIDE-NONTRADES"))
-              showNonTrades = false;
-            else if (option.equals("HIDE-STATS"))
-              showStats = false;
-            else if (option.equals("SHOW-MISSING"))
-              showMissing = true;
-            else if (option.equals("SORT-BY-ITEM"))
-              sortByItem = true;
-            else if (option.equals("ALLOW-DUMMIES"))
-              allowDummies = true;
-            else if (option.equals("SHOW-ELAPSED-TIME"))
-              showElapsedTime = true;
-            else if (option.equals("LINEAR-PRIORITIES"))
-              priorityScheme = LINEAR_PRIORITIES;
-            else if (option.equals("TRIANGLE-PRIORITIES"))
-              priorityScheme = TRIANGLE_PRIORITIES;
-            else if (option.equals("SQUARE-PRIORITIES"))
-              priorityScheme = SQUARE_PRIORITIES;
-            else if (option.equals("SCALED-PRIORITIES")) {
-              fatalError("SCALED-PRIORITIES no longer supported!",lineNumber);
-            }
-            else if (option.equals("EXPLICIT-PRIORITIES"))
-              priorityScheme = EXPLICIT_PRIORITIES;
-            else if (option.startsWith("SMALL-STEP=")) {
-              String num = option.substring(11);
-              if (!num.matches("\\d+"))
-                fatalError("SMALL-STEP argument must be a non-negative integer",lineNumber);
-              smallStep = Integer.parseInt(num);
-              smallStepFlag = true;
-            }
-            else if (option.startsWith("BIG-STEP=")) {
-              String num = option.substring(9);
-              if (!num.matches("\\d+"))
-                fatalError("BIG-STEP argument must be a non-negative integer",lineNumber);
-              bigStep = Integer.parseInt(num);
-              bigStepFlag = true;
-            }
-            else if (option.startsWith("NONTRADE-COST=")) {
-              String num = option.substring(14);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("NONTRADE-COST argument must be a positive integer",lineNumber);
-              nonTradeCost = Long.parseLong(num);
-            }
-            else if (option.startsWith("ITERATIONS=")) {
-              String num = option.substring(11);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("ITERATIONS argument must be a positive integer",lineNumber);
-              iterations = Integer.parseInt(num);
-            }
-            else if (option.startsWith("SEED=")) {
-              String num = option.substring(5);
-              if (!num.matches("[1-9]\\d*"))
-                fatalError("SEED argument must be a positive integer",lineNumber);
-              graph.setSeed(Long.parseLong(num));
-            }
-            else if (option.startsWith("SHRINK=")) {
-              String num = option.substring(7);
-              if (!num.matches("[0-9]")) {
-                fatalError("SHRINK argument must be a single digit",lineNumber);
-              }
-              shrinkLevel = Integer.parseInt(num);
-            }
-            else if (option.equals("SHRINK-VERBOSE")) {
-              shrinkVerbose = true;
-            }
-            else if (option.equals("SHOW-WANTS")) {
-              showWants = true;
-            }
-            else
-              fatalError("Unknown option \""+option+"\"",lineNumber);
-
-            options.add(option);
-          }
-          continue;
-        }
-        if (line.matches("#.*")) continue; // skip comment line
-        if (line.indexOf("#") != -1) {
-          if (readingOfficialNames) {
-            if (line.split("[:\\s]")[0].indexOf("#") != -1) {
-              fatalError("# symbol cannot be used in an item name",lineNumber);
-            }
-          }
-          else
-            fatalError("Comments (#...) cannot be used after beginning of line",lineNumber);
-        }
-
-        // handle official names
-        if (line.equalsIgnoreCase("!BEGIN-OFFICIAL-NAMES")) {
-          if (officialNames != null)
-            fatalError("Cannot begin official names more than once", lineNumber);
-          if (wantLists.size() > 0)
-            fatalError("Official names cannot be declared after first real want list", lineNumber);
+  boolean readingOfficialNames = false;
 
-          officialNames = new HashSet<String>();
-          readingOfficialNames = true;
-          continue;
-        }
-        if (line.equalsIgnoreCase("!END-OFFICIAL-NAMES")) {
-          if (!readingOfficialNames)
-            fatalError("!END-OFFICIAL-NAMES without matching !BEGIN-OFFICIAL-NAMES", lineNumber);
-          readingOfficialNames = false;
-          continue;
+  // Reads one line of a want list file, adding it to wantLists if it is a
+  // want list.  Lines must come in order, since options and official names
+  // can only be given before the first want list.
+  void readLine(String line, int lineNumber, List<String[]> wantLists)
+      throws WantListException {
+    try {
+      line = line.trim();
+      if (line.length() == 0) return; // skip blank link
+      if (line.matches("#!.*")) { // declare options
+        if (wantLists.size() > 0)
+          fatalError("Options (#!...) cannot be declared after first real want list", lineNumber);
+        if (officialNames != null)
+          fatalError("Options (#!...) cannot be declared after official names", lineNumber);
+        for (String option : line.toUpperCase().substring(2).trim().split("\\s+")) {
+          applyOption(option, lineNumber);
+          options.add(option);
         }
+        return;
+      }
+      if (line.matches("#.*")) return; // skip comment line
+      if (line.indexOf("#") != -1) {
         if (readingOfficialNames) {
-          if (line.charAt(0) == ':')
-            fatalError("Line cannot begin with colon",lineNumber);
-          if (line.charAt(0) == '%')
-            fatalError("Cannot give official names for dummy items",lineNumber);
-
-          String[] toks = line.split("[:\\s]");
-          String name = toks[0];
-          if (!caseSensitive) name = name.toUpperCase();
-          if (officialNames.contains(name))
-            fatalError("Official name "+name+"+ already defined",lineNumber);
-          officialNames.add(name);
-          continue;
-        }
-
-        // check parens for user name
-        if (line.indexOf("(") == -1 && requireUsernames)
-          fatalError("Missing username with REQUIRE-USERNAMES selected",lineNumber);
-        if (line.charAt(0) == '(') {
-          if (line.lastIndexOf("(") > 0)
-            fatalError("Cannot have more than one '(' per line",lineNumber);
-          int close = line.indexOf(")");
-          if (close == -1)
-            fatalError("Missing ')' in username",lineNumber);
-          if (close == line.length()-1)
-            fatalError("Username cannot appear on a line by itself",lineNumber);
-          if (line.lastIndexOf(")") > close)
-            fatalError("Cannot have more than one ')' per line",lineNumber);
-          if (close == 1)
-            fatalError("Cannot have empty parentheses",lineNumber);
-
-          // temporarily replace spaces in username with #'s
-          if (line.indexOf(" ") < close) {
-            line = line.substring(0,close+1).replaceAll(" ","#")+" "
-                    + line.substring(close+1);
+          if (line.split("[:\\s]")[0].indexOf("#") != -1) {
+            fatalError("# symbol cannot be used in an item name",lineNumber);
           }
         }
-        else if (line.indexOf("(") > 0)
-          fatalError("Username can only be used at the front of a want list",lineNumber);
-        else if (line.indexOf(")") > 0)
-          fatalError("Bad ')' on a line that does not have a '('",lineNumber);
-
-
-        // check semicolons
-        line = line.replaceAll(";"," ; ");
-        int semiPos = line.indexOf(";");
-        if (semiPos != -1) {
-          if (semiPos < line.indexOf(":"))
-            fatalError("Semicolon cannot appear before colon",lineNumber);
-          String before = line.substring(0,semiPos).trim();
-          if (before.length() == 0 || before.charAt(before.length()-1) == ')')
-            fatalError("Semicolon cannot appear before first item on line", lineNumber);
-        }
+        else
+          fatalError("Comments (#...) cannot be used after beginning of line",lineNumber);
+      }
 
-        // check and remove colon
-        int colonPos = line.indexOf(":");
-        if (colonPos != -1) {
-          if (line.lastIndexOf(":") != colonPos)
-            fatalError("Cannot have more that one colon on a line",lineNumber);
-          String header = line.substring(0,colonPos).trim();
-          if (!header.matches("(.*\\)\\s+)?[^(\\s)]\\S*"))
-            fatalError("Must have exactly one item before a colon (:)",lineNumber);
-          line = line.replaceFirst(":"," "); // remove colon
-        }
-        else if (requireColons) {
-          fatalError("Missing colon with REQUIRE-COLONS selected",lineNumber);
+      // handle official names
+      if (line.equalsIgnoreCase("!BEGIN-OFFICIAL-NAMES")) {
+        if (officialNames != null)
+          fatalError("Cannot begin official names more than once", lineNumber);
+        if (wantLists.size() > 0)
+          fatalError("Official names cannot be declared after first real want list", lineNumber);
+
+        officialNames = new HashSet<String>();
+        readingOfficialNames = true;
+        return;
+      }
+      if (line.equalsIgnoreCase("!END-OFFICIAL-NAMES")) {
+        if (!readingOfficialNames)
+          fatalError("!END-OFFICIAL-NAMES without matching !BEGIN-OFFICIAL-NAMES", lineNumber);
+        readingOfficialNames = false;
+        return;
+      }
+      if (readingOfficialNames) {
+        if (line.charAt(0) == ':')
+          fatalError("Line cannot begin with colon",lineNumber);
+        if (line.charAt(0) == '%')
+          fatalError("Cannot give official names for dummy items",lineNumber);
+
+        String[] toks = line.split("[:\\s]");
+        String name = toks[0];
+        if (!caseSensitive) name = name.toUpperCase();
+        if (officialNames.contains(name))
+          fatalError("Official name "+name+"+ already defined",lineNumber);
+        officialNames.add(name);
+        return;
+      }
+
+      // check parens for user name
+      if (line.indexOf("(") == -1 && requireUsernames)
+        fatalError("Missing username with REQUIRE-USERNAMES selected",lineNumber);
+      if (line.charAt(0) == '(') {
+        if (line.lastIndexOf("(") > 0)
+          fatalError("Cannot have more than one '(' per line",lineNumber);
+        int close = line.indexOf(")");
+        if (close == -1)
+          fatalError("Missing ')' in username",lineNumber);
+        if (close == line.length()-1)
+          fatalError("Username cannot appear on a line by itself",lineNumber);
+        if (line.lastIndexOf(")") > close)
+          fatalError("Cannot have more than one ')' per line",lineNumber);
+        if (close == 1)
+          fatalError("Cannot have empty parentheses",lineNumber);
+
+        // temporarily replace spaces in username with #'s
+        if (line.indexOf(" ") < close) {
+          line = line.substring(0,close+1).replaceAll(" ","#")+" "
+                  + line.substring(close+1);
         }
+      }
+      else if (line.indexOf("(") > 0)
+        fatalError("Username can only be used at the front of a want list",lineNumber);
+      else if (line.indexOf(")") > 0)
+        fatalError("Bad ')' on a line that does not have a '('",lineNumber);
+
+
+      // check semicolons
+      line = line.replaceAll(";"," ; ");
+      int semiPos = line.indexOf(";");
+      if (semiPos != -1) {
+        if (semiPos < line.indexOf(":"))
+          fatalError("Semicolon cannot appear before colon",lineNumber);
+        String before = line.substring(0,semiPos).trim();
+        if (before.length() == 0 || before.charAt(before.length()-1) == ')')
+          fatalError("Semicolon cannot appear before first item on line", lineNumber);
+      }
 
-        if (!caseSensitive) line = line.toUpperCase();
-        wantLists.add(line.trim().split("\\s+"));
+      // check and remove colon
+      int colonPos = line.indexOf(":");
+      if (colonPos != -1) {
+        if (line.lastIndexOf(":") != colonPos)
+          fatalError("Cannot have more that one colon on a line",lineNumber);
+        String header = line.substring(0,colonPos).trim();
+        if (!header.matches("(.*\\)\\s+)?[^(\\s)]\\S*"))
+          fatalError("Must have exactly one item before a colon (:)",lineNumber);
+        line = line.replaceFirst(":"," "); // remove colon
       }
+      else if (requireColons) {
+        fatalError("Missing colon with REQUIRE-COLONS selected",lineNumber);
+      }
+
+      if (!caseSensitive) line = line.toUpperCase();
+      wantLists.add(line.trim().split("\\s+"));
+      lineNumbers.add(lineNumber);
     }
-    catch(Exception e) {
-      fatalError(e.getMessage());
-      return null;
+    catch (SkipLine e) {
+      return; // --check mode: already recorded by fatalError
     }
   }
 
-  void fatalError(String msg) {
-    out.println();
-    out.println("FATAL ERROR: " + msg);
-    System.exit(1);
-  }
-  void fatalError(String msg,int lineNumber) {
-    fatalError(msg + " (line " + lineNumber + ")");
+  void fatalError(String msg,int lineNumber) throws WantListException {
+    if (checkOnly) {
+      fatalErrors.add("FATAL ERROR: " + msg + " (line " + lineNumber + ")");
+      throw new SkipLine();
+    }
+    throw new WantListException(msg, lineNumber);
   }
 
   //////////////////////////////////////////////////////////////////////
 
-  Graph graph = new Graph(out);
+  Graph graph; // created by the constructors, once out has been set
 
   List< String > errors = new ArrayList< String >();
 
@@ -380,7 +780,22 @@ public class TradeMaximizer {
     return b;
   }
 
-  void buildGraph(List< String[] > wantLists) {
+  // The number of copies NAME*K declares: 1 for a name without a count (or
+  // when copies are not allowed), and 0 for a count outside 1 to 9999,
+  // which is an error.  TradeFollower reads the names the same way.
+  int copiesIn(String name) {
+    if (!allowCopies || !name.matches(".+\\*\\d+")) return 1;
+    String count = name.substring(name.lastIndexOf('*')+1);
+    return count.matches("[1-9]\\d{0,3}") ? Integer.parseInt(count) : 0;
+  }
+
+  // the name without the count of copies, if any
+  String itemName(String name) {
+    if (!allowCopies || !name.matches(".+\\*\\d+")) return name;
+    return name.substring(0, name.lastIndexOf('*'));
+  }
+
+  void buildGraph(List< String[] > wantLists) throws WantListException {
 
     HashMap< String,Integer > unknowns = new HashMap< String,Integer >();
 
@@ -400,134 +815,424 @@ public class TradeMaximizer {
         wantLists.set(i,list);
         name = list[0];
       }
+      int copies = copiesIn(name);
+      name = itemName(name);
+      list[0] = name;
+      if (copies == 0) {
+        errors.add("**** Item " + name + " must have from 1 to 9999 copies." + atLine(i));
+        wantLists.set(i,null);
+        continue;
+      }
       boolean isDummy = (name.charAt(0) == '%');
+      if (isDummy && copies > 1) {
+        errors.add("**** Dummy item " + name + " cannot have copies." + atLine(i));
+        wantLists.set(i,null);
+        continue;
+      }
       if (isDummy) {
         if (user == null)
-          errors.add("**** Dummy item " + name + " declared without a username.");
+          errors.add("**** Dummy item " + name + " declared without a username." + atLine(i));
         else if (!allowDummies)
-          errors.add("**** Dummy items not allowed. ("+name+")");
+          errors.add("**** Dummy items not allowed. ("+name+")" + atLine(i));
         else {
           name += " for user " + user;
           list[0] = name;
         }
       }
       if (officialNames != null && !officialNames.contains(name) && name.charAt(0) != '%') {
-        errors.add("**** Cannot define want list for "+name+" because it is not an official name.  (Usually indicates a typo by the item owner.)");
+        errors.add("**** Cannot define want list for "+name+" because it is not an official name.  (Usually indicates a typo by the item owner.)" + atLine(i));
         wantLists.set(i,null);
       }
       else if (graph.getVertex(name) != null) {
-        errors.add("**** Item " + name + " has multiple want lists--ignoring all but first.  (Sometimes the result of an accidental line break in the middle of a want list.)");
+        errors.add("**** Item " + name + " has multiple want lists--ignoring all but first.  (Sometimes the result of an accidental line break in the middle of a want list.)" + atLine(i));
         wantLists.set(i, null);
       }
       else {
-        ITEMS++;
+        ITEMS += copies;
         if (isDummy) DUMMY_ITEMS++;
         Graph.Vertex vertex = graph.addVertex(name,user,isDummy);
         if (officialNames != null && officialNames.contains(name))
           usedNames.add(name);
+        if (copies > 1) {
+          String[] names = new String[copies];
+          for (int c = 0; c < copies; c++) names[c] = name + "#" + (c+1);
+          graph.addCopies(vertex, names);
+        }
 
-        if (!isDummy) width = Math.max(width, show(vertex).length());
+        for (Graph.Vertex copy : Graph.copiesOf(vertex))
+          if (!isDummy) width = Math.max(width, show(copy).length());
       }
     }
 
-    // create the edges
-    for (String[] list : wantLists) {
-      if (list == null) continue; // skip the duplicate lists
-      String fromName = list[0];
-      Graph.Vertex fromVertex = graph.getVertex(fromName);
+    // create the edges, resolving the want lists in parallel
+    List<Integer> listIndexes = new ArrayList<Integer>(wantLists.size());
+    for (int i = 0; i < wantLists.size(); i++) {
+      if (wantLists.get(i) == null) continue; // skip the duplicate lists
+      listIndexes.add(i);
+    }
+    HashMap< String,Integer > firstUse = new HashMap< String,Integer >();
+
+    // Unless the resolved lists are wanted again (to merge copies, or for
+    // the next solve of a sweep), they are resolved a batch at a time and
+    // go straight into the edge store, so that they are never all held at
+    // once.  That takes two passes, because the store is laid out from the
+    // number of edges of each vertex: the first counts them, and the second
+    // resolves the lists again and stores them, dropping each want list
+    // once its edges are in.
+    boolean inPasses = this.resolved == null && !keepResolved && !allowCopies && !checkOnly;
+    ResolvedWants[] resolved = null;
+    if (inPasses) {
+      graph.beginFreeze();
+      for (int start = 0; start < listIndexes.size(); start += RESOLVE_BATCH) {
+        List<Integer> batch = listIndexes.subList(start, Math.min(start + RESOLVE_BATCH, listIndexes.size()));
+        ResolvedWants[] some = resolveAllWants(listsAt(wantLists, batch));
+        for (int i = 0; i < some.length; i++) {
+          noteProblems(some[i], batch.get(i), unknowns, firstUse);
+          costsOf(some[i], batch.get(i), wantLists); // fails early if too large
+          graph.countWants(some[i].wants);
+        }
+      }
+    }
+    else {
+      resolved = this.resolved != null ? this.resolved : resolveAllWants(listsAt(wantLists, listIndexes));
+      if (keepResolved) this.resolved = resolved;
+      for (int i = 0; i < resolved.length; i++)
+        noteProblems(resolved[i], listIndexes.get(i), unknowns, firstUse);
+    }
 
-      // add the "no-trade" edge to itself
-      graph.addEdge(fromVertex,fromVertex.twin,nonTradeCost);
+    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
+      String item = entry.getKey();
+      int occurrences = entry.getValue();
+      String plural = occurrences == 1 ? "" : "s";
+      String where = checkOnly ? ", first on line " + lineNumbers.get(firstUse.get(item)) : "";
+      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + where + ")");
+    }
 
-      long rank = 1;
-      for (int i = 1; i < list.length; i++) {
-        String toName = list[i];
-        if (toName.equals(";")) {
-          rank += bigStep;
-          continue;
+    if (checkOnly) return; // --check stops before building the solver's graph
+    if (inPasses) {
+      graph.allocateEdges();
+      for (int start = 0; start < listIndexes.size(); start += RESOLVE_BATCH) {
+        List<Integer> batch = listIndexes.subList(start, Math.min(start + RESOLVE_BATCH, listIndexes.size()));
+        ResolvedWants[] some = resolveAllWants(listsAt(wantLists, batch));
+        for (int i = 0; i < some.length; i++) {
+          graph.storeWants(some[i].wants, costsOf(some[i]));
+          wantLists.set(batch.get(i), null);
         }
-        if (toName.indexOf('=') >= 0) {
-          if (priorityScheme != EXPLICIT_PRIORITIES) {
-            errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
-            continue;
-          }
-          if (!toName.matches("[^=]+=[0-9]+")) {
-            errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
-            continue;
-          }
-          String[] parts = toName.split("=");
-          assert(parts.length == 2);
-          long explicitCost = Long.parseLong(parts[1]);
-          if (explicitCost < 1) {
-            errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
-            continue;
-          }
-          rank = explicitCost;
-          toName = parts[0];
-        }
-        if (toName.charAt(0) == '%') {
-          if (fromVertex.user == null) {
-            errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
-            continue;
+      }
+      graph.endFreeze();
+      return;
+    }
+    int[][] wants = new int[resolved.length][];
+    long[][] costs = new long[resolved.length][];
+    for (int i = 0; i < resolved.length; i++) {
+      wants[i] = resolved[i].wants;
+      costs[i] = costsOf(resolved[i], listIndexes.get(i), wantLists);
+    }
+    Graph.Wants all = new Graph.Wants(wants, costs);
+    if (allowCopies) {
+      if (expandCopies()) all = graph.expandCopies(all);
+      else all = graph.mergeCopies(findInterchangeable(wants, costs), all);
+    }
+    graph.freeze(all.wants, all.costs);
+
+  } // end buildGraph
+
+  // want lists resolved at a time when the edges are built in passes
+  static final int RESOLVE_BATCH = 1024;
+
+  static List<String[]> listsAt(List<String[]> wantLists, List<Integer> indexes) {
+    List<String[]> lists = new ArrayList<String[]>(indexes.size());
+    for (int index : indexes) lists.add(wantLists.get(index));
+    return lists;
+  }
+
+  // adds the errors and unknown items found resolving the want list at index
+  void noteProblems(ResolvedWants list, int index, HashMap< String,Integer > unknowns,
+                    HashMap< String,Integer > firstUse) {
+    for (String error : list.errors) errors.add(error + atLine(index));
+    for (Map.Entry< String,Integer > entry : list.unknowns.entrySet()) {
+      String item = entry.getKey();
+      int occurrences = unknowns.containsKey(item) ? unknowns.get(item) : 0;
+      unknowns.put(item, occurrences + entry.getValue());
+      if (occurrences == 0) firstUse.put(item, index);
+    }
+  }
+
+  // costsOf, for the want list at index, with a fatal error if they are too large
+  long[] costsOf(ResolvedWants list, int index, List<String[]> wantLists) throws WantListException {
+    long[] costs = costsOf(list);
+    if (costs == null)
+      fatalError("Costs in want list for item " + wantLists.get(index)[0] +
+                 " go over 10^16 (lower the priorities, SMALL-STEP or BIG-STEP)",
+                 lineNumbers.get(index));
+    return costs;
+  }
+
+  // Only the default solve can keep the copies of an item together (see
+  // Graph.findBestFlows); shrinking, kernelizing, the approximate engine,
+  // the cache, the workers, --preview and --sensitivity all match one to
+  // one, so for them every copy becomes an item of its own.
+  boolean expandCopies() {
+    return shrinkLevel > 0 || kernelize || approxEngine || cache != null
+      || workers != null || previewOnly || sensitivityOnly;
+  }
+
+  // Items are interchangeable when they have the same owner, want the same
+  // items at the same costs, and are wanted by the same items at the same
+  // costs.  Then it makes no difference which of them trades, so they are
+  // solved as copies of one item.  Dummies and items without an owner are
+  // never interchangeable.  Returns the groups of two or more, each in the
+  // order the items were read.
+  List< List< Graph.Vertex > > findInterchangeable(int[][] wants, long[][] costs) {
+    int n = wants.length;
+    int[] wantedBy = new int[n];
+    for (int[] list : wants)
+      for (int k = 1; k < list.length; k++) wantedBy[list[k]]++;
+    long[][] incoming = new long[n][]; // wanter and cost, in pairs
+    for (int id = 0; id < n; id++) incoming[id] = new long[2*wantedBy[id]];
+    Arrays.fill(wantedBy, 0);
+    for (int id = 0; id < n; id++) {
+      for (int k = 1; k < wants[id].length; k++) {
+        int to = wants[id][k];
+        incoming[to][wantedBy[to]++] = id;
+        incoming[to][wantedBy[to]++] = costs[id][k];
+      }
+    }
+
+    Map< CopyKey,List< Graph.Vertex > > groups = new LinkedHashMap< CopyKey,List< Graph.Vertex > >();
+    for (Graph.Vertex v : graph.receiverList) {
+      if (v.isDummy || v.user == null) continue;
+      CopyKey key = new CopyKey(v.user, Arrays.copyOfRange(wants[v.id], 1, wants[v.id].length),
+                                costs[v.id], incoming[v.id]);
+      List< Graph.Vertex > group = groups.get(key);
+      if (group == null) groups.put(key, group = new ArrayList< Graph.Vertex >());
+      group.add(v);
+    }
+    List< List< Graph.Vertex > > result = new ArrayList< List< Graph.Vertex > >();
+    for (List< Graph.Vertex > group : groups.values())
+      if (group.size() > 1) result.add(group);
+    return result;
+  }
+
+  static class CopyKey {
+    final String user;
+    final int[] wants; // without the self edge
+    final long[] costs;
+    final long[] incoming;
+    CopyKey(String user, int[] wants, long[] costs, long[] incoming) {
+      this.user = user;
+      this.wants = wants;
+      this.costs = costs;
+      this.incoming = incoming;
+    }
+    public boolean equals(Object o) {
+      CopyKey other = (CopyKey) o;
+      return user.equals(other.user) && Arrays.equals(wants, other.wants)
+        && Arrays.equals(costs, other.costs) && Arrays.equals(incoming, other.incoming);
+    }
+    public int hashCode() {
+      return ((user.hashCode()*31 + Arrays.hashCode(wants))*31 + Arrays.hashCode(costs))*31
+        + Arrays.hashCode(incoming);
+    }
+  }
+
+  // the result of resolving one want list: the ids of the wanted items
+  // (self edge first) and the rank of each want, plus the errors and
+  // unknown items found along the way.  The rank of want k is
+  // bases[k] + smallSteps[k]*SMALL-STEP + bigSteps[k]*BIG-STEP, so the costs
+  // can be worked out again for other steps and priorities without
+  // resolving the names again (see TradeSweep).
+  static class ResolvedWants {
+    boolean isDummy;
+    int[] wants;
+    long[] bases;
+    int[] smallSteps;
+    int[] bigSteps;
+    List< String > errors = new ArrayList< String >();
+    HashMap< String,Integer > unknowns = new HashMap< String,Integer >();
+  }
+
+  // If set, buildGraph uses these instead of resolving the want lists
+  // again, which is only right for the same trade and the same options
+  // apart from the costs.  With keepResolved, buildGraph sets them, so they
+  // can be handed on to the next solve (see TradeSweep).
+  ResolvedWants[] resolved = null;
+  boolean keepResolved = false;
+
+  int threads = Runtime.getRuntime().availableProcessors();
+
+  ResolvedWants[] resolveAllWants(final List< String[] > lists) {
+    final ResolvedWants[] resolved = new ResolvedWants[lists.size()];
+    if (threads <= 1) {
+      for (int i = 0; i < resolved.length; i++)
+        resolved[i] = resolveWants(lists.get(i));
+      return resolved;
+    }
+
+    // hand out small chunks so that a few very long want lists
+    // do not leave the other threads idle
+    int chunkSize = Math.max(1, resolved.length / (threads*8));
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List< Future<?> > futures = new ArrayList< Future<?> >();
+      for (int start = 0; start < resolved.length; start += chunkSize) {
+        final int from = start;
+        final int to = Math.min(start + chunkSize, resolved.length);
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            for (int i = from; i < to; i++)
+              resolved[i] = resolveWants(lists.get(i));
           }
+        }));
+      }
+      for (Future<?> future : futures) future.get();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+    return resolved;
+  }
 
-          toName += " for user " + fromVertex.user;
+  // Must not modify any shared state, because want lists are resolved
+  // concurrently.  The graph only has to answer getVertex() here.
+  ResolvedWants resolveWants(String[] list) {
+    ResolvedWants result = new ResolvedWants();
+    String fromName = list[0];
+    Graph.Vertex fromVertex = graph.getVertex(fromName);
+    int[] wants = new int[list.length];
+    long[] bases = new long[list.length];
+    int[] smallSteps = new int[list.length];
+    int[] bigSteps = new int[list.length];
+    int count = 0;
+    HashSet< Graph.Vertex > wanted = new HashSet< Graph.Vertex >();
+    result.isDummy = fromVertex.isDummy;
+
+    // add the "no-trade" edge to itself
+    wants[count++] = fromVertex.id;
+
+    long base = 1;
+    int small = 0, big = 0;
+    for (int i = 1; i < list.length; i++) {
+      String toName = list[i];
+      if (toName.equals(";")) {
+        big++;
+        continue;
+      }
+      if (toName.indexOf('=') >= 0) {
+        if (priorityScheme != EXPLICIT_PRIORITIES) {
+          result.errors.add("**** Cannot use '=' annotation in item "+toName+" in want list for item "+fromName+" unless using EXPLICIT_PRIORITIES.");
+          continue;
         }
-        Graph.Vertex toVertex = graph.getVertex(toName);
-        if (toVertex == null) {
-          if (officialNames != null && officialNames.contains(toName)) {
-            // this is an official item whose owner did not submit a want list
-            rank += smallStep;
-          }
-          else {
-            int occurrences = unknowns.containsKey(toName) ? unknowns.get(toName) : 0;
-            unknowns.put(toName,occurrences + 1);
-          }
+        if (!toName.matches("[^=]+=[0-9]+")) {
+          result.errors.add("**** Item "+toName+" in want list for item "+fromName+" must have the format 'name=number'.");
           continue;
         }
-
-        toVertex = toVertex.twin; // adjust to the sending vertex
-        if (toVertex == fromVertex.twin) {
-          errors.add("**** Item " + toName + " appears in its own want list.");
+        String[] parts = toName.split("=");
+        assert(parts.length == 2);
+        String digits = parts[1].replaceFirst("^0+(?=\\d)", "");
+        long explicitCost = digits.length() > 17 ? Long.MAX_VALUE : Long.parseLong(digits);
+        if (explicitCost < 1) {
+          result.errors.add("**** Explicit priority must be positive in item "+toName+" in want list for item "+fromName+".");
+          continue;
         }
-        else if (graph.getEdge(fromVertex,toVertex) != null) {
-          if (showRepeats)
-            errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+        if (explicitCost > Graph.MAX_COST) {
+          result.errors.add("**** Explicit priority must be at most 10^16 in item "+toName+" in want list for item "+fromName+".");
+          continue;
         }
-        else if (!toVertex.isDummy &&
-                 fromVertex.user != null &&
-                 fromVertex.user.equals(toVertex.user)) {
-          errors.add("**** Item "+fromVertex.name +" contains item "+toVertex.name+" from the same user ("+fromVertex.user+")");
+        base = explicitCost;
+        small = big = 0;
+        toName = parts[0];
+      }
+      if (toName.charAt(0) == '%') {
+        if (fromVertex.user == null) {
+          result.errors.add("**** Dummy item " + toName + " used in want list for item " + fromName + ", which does not have a username.");
+          continue;
         }
-        else {
-          long cost = UNIT;
-          switch (priorityScheme) {
-            case LINEAR_PRIORITIES:   cost = rank; break;
-            case TRIANGLE_PRIORITIES: cost = rank*(rank+1)/2; break;
-            case SQUARE_PRIORITIES:   cost = rank*rank; break;
-            case EXPLICIT_PRIORITIES: cost = rank; break;
-          }
 
-          // all edges out of a dummy node have the same cost
-          if (fromVertex.isDummy) cost = nonTradeCost;
+        toName += " for user " + fromVertex.user;
+      }
+      Graph.Vertex toVertex = graph.getVertex(toName);
+      if (toVertex == null) {
+        if (officialNames != null && officialNames.contains(toName)) {
+          // this is an official item whose owner did not submit a want list
+          small++;
+        }
+        else {
+          int occurrences = result.unknowns.containsKey(toName) ? result.unknowns.get(toName) : 0;
+          result.unknowns.put(toName,occurrences + 1);
+        }
+        continue;
+      }
 
-          graph.addEdge(fromVertex,toVertex,cost);
+      toVertex = toVertex.twin; // adjust to the sending vertex
+      if (toVertex == fromVertex.twin) {
+        result.errors.add("**** Item " + toName + " appears in its own want list.");
+      }
+      else if (wanted.contains(toVertex)) {
+        if (showRepeats)
+          result.errors.add("**** Item " + toName + " is repeated in want list for " + fromName + ".");
+      }
+      else if (!toVertex.isDummy &&
+               fromVertex.user != null &&
+               fromVertex.user.equals(toVertex.user)) {
+        result.errors.add("**** Item "+fromVertex.name +" contains item "+toVertex.name+" from the same user ("+fromVertex.user+")");
+      }
+      else {
+        wants[count] = toVertex.id;
+        bases[count] = base;
+        smallSteps[count] = small;
+        bigSteps[count++] = big;
+        wanted.add(toVertex);
 
-          rank += smallStep;
-        }
+        small++;
       }
     }
 
-    graph.freeze();
-
-    for (Map.Entry< String,Integer > entry : unknowns.entrySet()) {
-      String item = entry.getKey();
-      int occurrences = entry.getValue();
-      String plural = occurrences == 1 ? "" : "s";
-      errors.add("**** Unknown item " + item + " (" + occurrences + " occurrence" + plural + ")");
+    if (!checkOnly) {
+      result.wants = Arrays.copyOf(wants, count);
+      result.bases = Arrays.copyOf(bases, count);
+      result.smallSteps = Arrays.copyOf(smallSteps, count);
+      result.bigSteps = Arrays.copyOf(bigSteps, count);
     }
+    return result;
+  }
 
-  } // end buildGraph
+  // the cost of each edge of a resolved want list, self edge first, or null
+  // if any of them would go over Graph.MAX_COST
+  long[] costsOf(ResolvedWants list) {
+    long[] costs = new long[list.wants.length];
+    costs[0] = nonTradeCost;
+    for (int k = 1; k < costs.length; k++) {
+      // all edges out of a dummy node have the same cost
+      if (list.isDummy) {
+        costs[k] = nonTradeCost;
+        continue;
+      }
+
+      // each step term is under 2^62, so each is checked before adding them
+      long small = list.smallSteps[k]*(long)smallStep;
+      long big = list.bigSteps[k]*(long)bigStep;
+      if (small > Graph.MAX_COST || big > Graph.MAX_COST) return null;
+      long rank = list.bases[k] + small + big;
+      if (rank > Graph.MAX_COST) return null;
+      long cost = UNIT;
+      switch (priorityScheme) {
+        case LINEAR_PRIORITIES:   cost = rank; break;
+        case TRIANGLE_PRIORITIES: cost = rank > 100000000L ? Long.MAX_VALUE : rank*(rank+1)/2; break;
+        case SQUARE_PRIORITIES:   cost = rank > 100000000L ? Long.MAX_VALUE : rank*rank; break;
+        case EXPLICIT_PRIORITIES: cost = rank; break;
+      }
+      if (cost > Graph.MAX_COST) return null;
+      costs[k] = cost;
+    }
+    return costs;
+  }
 
   String show(Graph.Vertex vertex) {
     if (vertex.user == null || vertex.isDummy) return vertex.name;
@@ -537,7 +1242,7 @@ public class TradeMaximizer {
 
   //////////////////////////////////////////////////////////////////////
 
-  void displayMatches(List<List<Graph.Vertex>> cycles) {
+  TradeResult displayMatches(List<List<Graph.Vertex>> cycles, SolverWorkspace workspace) {
     int numTrades = 0;
     int numGroups = cycles.size();
     long totalCost = 0;
@@ -546,29 +1251,40 @@ public class TradeMaximizer {
 
     List< String > summary = new ArrayList< String >();
     List< String > loops = new ArrayList< String >();
+    List< List< String > > loopNames = new ArrayList< List< String > >();
 
     for (List<Graph.Vertex> cycle : cycles) {
       int size = cycle.size();
       numTrades += size;
       sumOfSquares += size*size;
       groupSizes.add(size);
+      List< String > names = new ArrayList< String >(size);
+      loopNames.add(names);
       for (Graph.Vertex v : cycle) {
-        assert v.match != v.twin;
-        loops.add(pad(show(v)) + " receives " + show(v.match.twin));
-        summary.add(pad(show(v)) + " receives " + pad(show(v.match.twin)) + " and sends to " + show(v.twin.match));
-        totalCost += v.matchCost;
+        names.add(v.name);
+        Graph.Vertex match = workspace.match(v);
+        assert match != v.twin;
+        loops.add(pad(show(v)) + " receives " + show(match.twin));
+        summary.add(pad(show(v)) + " receives " + pad(show(match.twin)) + " and sends to " + show(workspace.match(v.twin)));
+        totalCost += workspace.matchCost(v);
       }
       loops.add("");
     }
     if (showNonTrades) {
-      for (Graph.Vertex v : graph.receivers) {
-        if (v.match == v.twin && !v.isDummy)
-          summary.add(pad(show(v)) + "             does not trade");
+      for (Graph.Vertex item : graph.receivers) {
+        for (Graph.Vertex v : Graph.copiesOf(item))
+          if (workspace.match(v) == v.twin && !v.isDummy)
+            summary.add(pad(show(v)) + "             does not trade");
       }
-      for (Graph.Vertex v : graph.orphans) {
-        if (!v.isDummy)
+      for (Graph.Vertex v : graph.reducedReceivers) {
+        if (workspace.match(v) == v.twin && !v.isDummy)
           summary.add(pad(show(v)) + "             does not trade");
       }
+      for (Graph.Vertex item : graph.orphans) {
+        for (Graph.Vertex v : Graph.copiesOf(item))
+          if (!v.isDummy)
+            summary.add(pad(show(v)) + "             does not trade");
+      }
     }
 
     if (showLoops) {
@@ -602,6 +1318,9 @@ public class TradeMaximizer {
       out.println();
       out.println("Sum squares = " + sumOfSquares);
     }
+
+    return new TradeResult(loopNames, errors, numTrades, ITEMS-DUMMY_ITEMS,
+                           totalCost, sumOfSquares);
   }
 
   int width = 1;
@@ -623,18 +1342,24 @@ public class TradeMaximizer {
       out.println("#! EXPLICIT-PRIORITIES");
     if (allowDummies)
       out.println("#! ALLOW-DUMMIES");
-    for (Graph.Vertex v : graph.receivers) {
-      if (v.user != null) out.print(v.user + " ");
-      out.print(nameOf(v) + ":");
-      for (Graph.Edge e : v.edges) {
-        if (e.sender != v.twin) {
-          out.print(" " + nameOf(e.sender.twin));
-          if (priorityScheme != NO_PRIORITIES)
-            out.print("=" + e.cost);
-        }
+    if (allowCopies)
+      out.println("#! ALLOW-COPIES");
+    for (Graph.Vertex v : graph.receivers) printWants(v);
+    for (Graph.Vertex v : graph.reducedReceivers) printWants(v);
+  }
+  void printWants(Graph.Vertex v) {
+    if (v.user != null) out.print(v.user + " ");
+    out.print(nameOf(v) + (v.copies > 1 ? "*" + v.copies : "") + ":");
+    for (int k = 0; k < v.degree; k++) {
+      int e = graph.receiverEdge(v, k);
+      Graph.Vertex sender = graph.senderOf(e);
+      if (sender != v.twin) {
+        out.print(" " + nameOf(sender.twin));
+        if (priorityScheme != NO_PRIORITIES)
+          out.print("=" + graph.costOf(e));
       }
-      out.println();
     }
+    out.println();
   }
 
 } // end TradeMaximizer
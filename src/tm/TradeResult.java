@@ -0,0 +1,50 @@
+// TradeResult.java
+
+package tm;
+import java.util.*;
+
+/* The outcome of TradeMaximizer.solve: the trade loops that were found, the
+ * totals shown in the stats, the (non-fatal) errors in the want lists, and
+ * the full report exactly as the command line version prints it.
+ */
+public final class TradeResult {
+
+  private final List< List< String > > loops;
+  private final List< String > errors;
+  private final int numTrades;
+  private final int numItems;
+  private final long totalCost;
+  private final long sumOfSquares;
+  String report = ""; // filled in by TradeMaximizer.solve, before it returns
+
+  TradeResult(List< List< String > > loops, List< String > errors,
+              int numTrades, int numItems, long totalCost, long sumOfSquares) {
+    List< List< String > > copy = new ArrayList< List< String > >(loops.size());
+    for (List< String > loop : loops)
+      copy.add(Collections.unmodifiableList(new ArrayList< String >(loop)));
+    this.loops = Collections.unmodifiableList(copy);
+    this.errors = Collections.unmodifiableList(new ArrayList< String >(errors));
+    this.numTrades = numTrades;
+    this.numItems = numItems;
+    this.totalCost = totalCost;
+    this.sumOfSquares = sumOfSquares;
+  }
+
+  // Each loop lists the names of its items, where every item receives the
+  // next one and the last item receives the first.
+  public List< List< String > > getLoops() { return loops; }
+
+  public List< String > getErrors() { return errors; }
+
+  public int getNumTrades() { return numTrades; }
+
+  // the number of items in the trade, not counting dummy items
+  public int getNumItems() { return numItems; }
+
+  public long getTotalCost() { return totalCost; }
+
+  public long getSumOfSquares() { return sumOfSquares; }
+
+  public String getReport() { return report; }
+
+} // end TradeResult
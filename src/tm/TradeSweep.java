@@ -0,0 +1,298 @@
+// TradeSweep.java
+
+package tm;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Solves one want list file under many settings of the options that only
+ * change the costs, to help choose them for a trade:
+ *
+ *   java -cp tm.jar tm.TradeSweep [options] wantlistfile SETTING=v1,v2,... ...
+ *
+ * The settings are SMALL-STEP, BIG-STEP, NONTRADE-COST and PRIORITIES (NO,
+ * LINEAR, TRIANGLE, SQUARE or EXPLICIT), and every combination of their
+ * values is solved, with the options in the file applied first.  A table
+ * comparing the combinations is printed at the end, and with --out each
+ * one's report is also written to its own file.
+ *
+ * The file is read once, and the names in the want lists are resolved only
+ * once, by the first solve (twice if EXPLICIT is mixed with other schemes,
+ * since '=' annotations only count under EXPLICIT-PRIORITIES).  The other
+ * solves just work out the costs from the ranks again, and they run on a
+ * fixed pool of threads, each thread with its own workspace.
+ */
+public class TradeSweep {
+
+  public static void main(String[] args) {
+    TradeSweep sweep = new TradeSweep();
+    String source = null;
+    List< String > settings = new ArrayList< String >();
+    for (String arg : args) {
+      if (arg.startsWith("--threads=") && arg.substring(10).matches("[1-9]\\d*"))
+        sweep.threads = Integer.parseInt(arg.substring(10));
+      else if (arg.startsWith("--out="))
+        sweep.outputDir = new File(arg.substring(6));
+      else if ((arg.equals("-") || !arg.startsWith("--")) && source == null)
+        source = arg;
+      else if (!arg.startsWith("--"))
+        settings.add(arg);
+      else
+        usage("Unknown argument \"" + arg + "\"");
+    }
+    if (source == null) usage("Missing want list file");
+
+    List< List< String > > combinations = null;
+    try {
+      combinations = combinations(settings);
+    }
+    catch (IllegalArgumentException e) {
+      usage(e.getMessage());
+    }
+
+    try {
+      long start = System.currentTimeMillis();
+      InputStream in = source.equals("-") ? System.in
+        : new BufferedInputStream(new FileInputStream(source));
+      Trade trade;
+      try {
+        trade = Trade.parse(in);
+      }
+      finally {
+        in.close();
+      }
+      System.out.println("Read " + trade.getWantListCount() + " want lists in "
+                         + (System.currentTimeMillis() - start) + "ms");
+      System.out.println();
+
+      String name = new File(source).getName();
+      if (name.endsWith(".txt")) name = name.substring(0, name.length()-4);
+      List< Job > jobs = sweep.solveAll(trade, combinations, name);
+      sweep.printSummary(jobs, System.out);
+      for (Job job : jobs)
+        if (job.status != TradeBatch.Status.OK) System.exit(1);
+    }
+    catch (IOException e) {
+      System.err.println("Cannot read " + source + ": " + e.getMessage());
+      System.exit(1);
+    }
+    catch (TradeException e) {
+      System.out.println("FATAL ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  static void usage(String msg) {
+    System.err.println(msg);
+    System.err.println("Usage: java -cp tm.jar tm.TradeSweep [--threads=N] [--out=DIR] wantlistfile|- SETTING=value,value,... ...");
+    System.err.println("  where SETTING is SMALL-STEP, BIG-STEP, NONTRADE-COST or PRIORITIES (NO, LINEAR, TRIANGLE, SQUARE, EXPLICIT)");
+    System.exit(1);
+  }
+
+  int threads = Runtime.getRuntime().availableProcessors();
+  File outputDir = null; // null means no reports are written
+
+  //////////////////////////////////////////////////////////////////////
+
+  static final List< String > SETTINGS =
+    Arrays.asList("SMALL-STEP", "BIG-STEP", "NONTRADE-COST", "PRIORITIES");
+  static final List< String > SCHEMES =
+    Arrays.asList("NO", "LINEAR", "TRIANGLE", "SQUARE", "EXPLICIT");
+
+  // The options for every combination of the settings, the last setting
+  // changing fastest.  Each value is checked as the option it becomes.
+  static List< List< String > > combinations(List< String > settings) {
+    List< List< String > > combinations = new ArrayList< List< String > >();
+    combinations.add(new ArrayList< String >());
+    Set< String > seen = new HashSet< String >();
+    for (String setting : settings) {
+      setting = setting.toUpperCase();
+      int equals = setting.indexOf('=');
+      String name = equals < 0 ? setting : setting.substring(0, equals);
+      if (equals < 0 || !SETTINGS.contains(name))
+        throw new IllegalArgumentException("Unknown setting \"" + setting + "\"");
+      if (!seen.add(name))
+        throw new IllegalArgumentException("Setting " + name + " given more than once");
+
+      List< String > options = new ArrayList< String >();
+      for (String value : setting.substring(equals+1).split(",")) {
+        String option;
+        if (name.equals("PRIORITIES")) {
+          if (!SCHEMES.contains(value))
+            throw new IllegalArgumentException("PRIORITIES must be NO, LINEAR, TRIANGLE, SQUARE or EXPLICIT");
+          option = value + "-PRIORITIES";
+        }
+        else option = name + "=" + value;
+        try {
+          new TradeMaximizer(null, new ByteArrayOutputStream()).applyOption(option, 0);
+        }
+        catch (WantListException e) {
+          throw new IllegalArgumentException(e.getMessage());
+        }
+        options.add(option);
+      }
+
+      List< List< String > > more = new ArrayList< List< String > >();
+      for (List< String > combination : combinations) {
+        for (String option : options) {
+          List< String > next = new ArrayList< String >(combination);
+          next.add(option);
+          more.add(next);
+        }
+      }
+      combinations = more;
+    }
+    return combinations;
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  static class Job {
+    int number; // from 1
+    List< String > options;
+    boolean explicit; // under EXPLICIT-PRIORITIES, which resolves differently
+    File output;
+    TradeBatch.Status status;
+    String message = "";
+    TradeResult result;
+    long solveTime; // ms
+  }
+
+  List< Job > solveAll(final Trade trade, List< List< String > > combinations, String name)
+      throws TradeException {
+    final List< Job > jobs = new ArrayList< Job >();
+    for (List< String > options : combinations) {
+      Job job = new Job();
+      job.number = jobs.size() + 1;
+      job.options = options;
+      TradeMaximizer tm = new TradeMaximizer(null, new ByteArrayOutputStream());
+      for (String option : trade.getOptions()) tm.applyOption(option, 0);
+      for (String option : options) tm.applyOption(option, 0);
+      job.explicit = tm.priorityScheme == TradeMaximizer.EXPLICIT_PRIORITIES;
+      if (outputDir != null) job.output = new File(outputDir, name + "-" + job.number + ".out");
+      jobs.add(job);
+    }
+    if (outputDir != null) outputDir.mkdirs();
+
+    // the first job of each kind resolves the want lists for the rest
+    final Map< Boolean,TradeMaximizer.ResolvedWants[] > resolved =
+      new ConcurrentHashMap< Boolean,TradeMaximizer.ResolvedWants[] >();
+    List< Job > first = new ArrayList< Job >();
+    List< Job > rest = new ArrayList< Job >();
+    Set< Boolean > kinds = new HashSet< Boolean >();
+    for (Job job : jobs) {
+      if (kinds.add(job.explicit)) first.add(job);
+      else rest.add(job);
+    }
+
+    final ThreadLocal< SolverWorkspace > workspaces = new ThreadLocal< SolverWorkspace >() {
+      protected SolverWorkspace initialValue() { return new SolverWorkspace(); }
+    };
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (List< Job > phase : Arrays.asList(first, rest)) {
+        List< Future<?> > futures = new ArrayList< Future<?> >();
+        for (final Job job : phase) {
+          futures.add(pool.submit(new Runnable() {
+            public void run() {
+              solve(trade, job, resolved, workspaces.get());
+            }
+          }));
+        }
+        for (Future<?> future : futures) future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+    return jobs;
+  }
+
+  void solve(Trade trade, Job job, Map< Boolean,TradeMaximizer.ResolvedWants[] > resolved,
+             SolverWorkspace workspace) {
+    String report;
+    long start = System.currentTimeMillis();
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      TradeMaximizer tm = new TradeMaximizer(null, output);
+      tm.resolved = resolved.get(job.explicit);
+      tm.keepResolved = tm.resolved == null;
+      PrintStream header = new PrintStream(output);
+      header.println("TradeMaximizer " + tm.version);
+      header.flush();
+      job.result = tm.solve(trade, job.options, workspace);
+      job.solveTime = System.currentTimeMillis() - start;
+      if (tm.keepResolved) resolved.put(job.explicit, tm.resolved);
+      job.status = TradeBatch.Status.OK;
+      report = output.toString();
+    }
+    catch (TradeException e) {
+      job.status = TradeBatch.Status.FATAL;
+      job.message = e.getMessage();
+      report = "FATAL ERROR: " + e.getMessage() + "\n";
+    }
+    catch (Throwable e) { // includes OutOfMemoryError, the rest of the sweep can go on
+      job.status = TradeBatch.Status.FAILED;
+      job.message = e.toString();
+      report = "FAILED: " + e + "\n";
+    }
+
+    if (job.output == null) return;
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(job.output));
+      try {
+        out.write(report);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      job.status = TradeBatch.Status.FAILED;
+      job.message = "Cannot write " + job.output + ": " + e.getMessage();
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  void printSummary(List< Job > jobs, PrintStream out) {
+    int width = 7;
+    for (Job job : jobs) width = Math.max(width, join(job.options).length());
+
+    out.println("   #  " + TradeBatch.pad("Options", width)
+                + "   Trades          Total cost   Groups   Sum squares   Solve ms");
+    int ok = 0;
+    long totalSolve = 0;
+    for (Job job : jobs) {
+      out.print(String.format("%4d  ", job.number) + TradeBatch.pad(join(job.options), width));
+      if (job.status == TradeBatch.Status.OK) {
+        TradeResult result = job.result;
+        ok++;
+        totalSolve += job.solveTime;
+        out.println(String.format(" %8d %19d %8d %13d %10d", result.getNumTrades(),
+                                  result.getTotalCost(), result.getLoops().size(),
+                                  result.getSumOfSquares(), job.solveTime));
+      }
+      else out.println("  " + job.status + " " + job.message);
+    }
+    out.println();
+    out.println("Solved " + ok + " of " + jobs.size() + " combinations (solve " + totalSolve
+                + "ms in total)");
+  }
+
+  static String join(List< String > options) {
+    StringBuilder b = new StringBuilder();
+    for (String option : options) {
+      if (b.length() > 0) b.append(' ');
+      b.append(option);
+    }
+    return b.toString();
+  }
+
+} // end TradeSweep
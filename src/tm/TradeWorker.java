@@ -0,0 +1,205 @@
+// TradeWorker.java
+
+package tm;
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/* A worker process for solving the components of a trade that is too big
+ * for one JVM (see WorkerPool):
+ *
+ *   java -cp tm.jar tm.TradeWorker [--port=N] [--bind=ADDRESS]
+ *
+ * The worker listens on the port (by default, any free one) of the address
+ * (by default, every address of the host) and prints the port it got as
+ * the first line of its output.  Each connection sends components one
+ * after another, and gets back each one's optimal matching and prices.
+ *
+ * A component travels as its receivers, numbered from 0, each with its
+ * edges to the senders of the same component (the sender numbered i is the
+ * twin of receiver i) and their costs.  Item names never leave the
+ * coordinator.  The matching comes back as the position of each
+ * receiver's matched edge in its list, followed by the prices of the
+ * receivers and of the senders, so the solve can carry on from them.
+ * While it solves, the worker sends KEEP_ALIVE every few seconds, so the
+ * coordinator can tell a worker that has stopped from a long solve.
+ *
+ *   request:  MAGIC, secret, n, then for each receiver: degree, (sender, cost)*
+ *   response: KEEP_ALIVE*, n, then n edge positions, n + n prices
+ *
+ * If the environment variable TM_WORKER_SECRET is set, a request must
+ * carry the same secret (the coordinator sends its own TM_WORKER_SECRET),
+ * and otherwise the connection is closed.
+ */
+public class TradeWorker {
+
+  static final int MAGIC = 0x544d5732; // "TMW2"
+  static final int KEEP_ALIVE = -1;
+  static final long KEEP_ALIVE_MILLIS = 5000;
+  static final String SECRET_VARIABLE = "TM_WORKER_SECRET";
+
+  // no component is bigger than any real trade
+  static final int MAX_RECEIVERS = 1 << 22;
+  static final long MAX_EDGES = 1L << 28;
+
+  public static void main(String[] args) throws IOException {
+    int port = 0;
+    InetAddress bind = null;
+    for (String arg : args) {
+      if (arg.startsWith("--port=") && arg.substring(7).matches("\\d+"))
+        port = Integer.parseInt(arg.substring(7));
+      else if (arg.startsWith("--bind=") && arg.length() > 7)
+        bind = InetAddress.getByName(arg.substring(7));
+      else {
+        System.err.println("Unknown argument \"" + arg + "\"");
+        System.err.println("Usage: java -cp tm.jar tm.TradeWorker [--port=N] [--bind=ADDRESS]");
+        System.exit(1);
+      }
+    }
+
+    final String secret = secret();
+    if (secret.length() == 0 && (bind == null || !bind.isLoopbackAddress()))
+      System.err.println("TradeWorker: " + SECRET_VARIABLE + " is not set, so anyone who can reach the port can use this worker");
+    ServerSocket server = new ServerSocket(port, 50, bind);
+    System.out.println("TradeWorker listening on port " + server.getLocalPort());
+    System.out.flush();
+    while (true) {
+      final Socket socket = server.accept();
+      new Thread(new Runnable() {
+        public void run() { serve(socket, secret); }
+      }).start();
+    }
+  }
+
+  // the shared secret from the environment, or "" if there is none
+  static String secret() {
+    String secret = System.getenv(SECRET_VARIABLE);
+    return secret == null ? "" : secret;
+  }
+
+  static void serve(Socket socket, String secret) {
+    SolverWorkspace workspace = new SolverWorkspace();
+    Timer timer = new Timer(true);
+    try {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        }
+        catch (EOFException e) {
+          break; // the coordinator is done
+        }
+        if (magic != MAGIC) throw new IOException("bad request");
+        byte[] given = in.readUTF().getBytes("UTF-8");
+        if (secret.length() > 0 && !MessageDigest.isEqual(given, secret.getBytes("UTF-8")))
+          throw new IOException("wrong secret from " + socket.getInetAddress());
+
+        int n = in.readInt();
+        if (n < 1 || n > MAX_RECEIVERS) throw new IOException("bad size " + n);
+        int[][] wants = new int[n][];
+        long[][] costs = new long[n][];
+        readComponent(in, wants, costs);
+
+        TimerTask keepAlive = new TimerTask() {
+          public void run() {
+            synchronized (out) {
+              try {
+                out.writeInt(KEEP_ALIVE);
+                out.flush();
+              }
+              catch (IOException e) {
+                cancel(); // the reply will fail too
+              }
+            }
+          }
+        };
+        timer.schedule(keepAlive, KEEP_ALIVE_MILLIS, KEEP_ALIVE_MILLIS);
+        long[] prices = new long[2*n];
+        int[] choice;
+        try {
+          choice = solve(wants, costs, prices, workspace);
+        }
+        finally {
+          keepAlive.cancel();
+        }
+
+        synchronized (out) {
+          out.writeInt(n);
+          for (int k : choice) out.writeInt(k);
+          for (long price : prices) out.writeLong(price);
+          out.flush();
+        }
+      }
+    }
+    catch (IOException e) {
+      System.err.println("TradeWorker: " + e.getMessage());
+    }
+    finally {
+      timer.cancel();
+      try { socket.close(); } catch (IOException e) {}
+    }
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  static void writeComponent(DataOutputStream out, String secret, int[][] wants, long[][] costs)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeUTF(secret);
+    out.writeInt(wants.length);
+    for (int i = 0; i < wants.length; i++) {
+      out.writeInt(wants[i].length);
+      for (int k = 0; k < wants[i].length; k++) {
+        out.writeInt(wants[i][k]);
+        out.writeLong(costs[i][k]);
+      }
+    }
+  }
+
+  static void readComponent(DataInputStream in, int[][] wants, long[][] costs)
+      throws IOException {
+    int n = wants.length;
+    long edges = 0;
+    for (int i = 0; i < n; i++) {
+      int degree = in.readInt();
+      if (degree < 1 || degree > n) throw new IOException("bad degree " + degree);
+      edges += degree;
+      if (edges > MAX_EDGES) throw new IOException("too many edges");
+      wants[i] = new int[degree];
+      costs[i] = new long[degree];
+      for (int k = 0; k < degree; k++) {
+        wants[i][k] = in.readInt();
+        costs[i][k] = in.readLong();
+        if (wants[i][k] < 0 || wants[i][k] >= n) throw new IOException("bad sender " + wants[i][k]);
+      }
+    }
+  }
+
+  // the position of each receiver's matched edge in a min-cost perfect
+  // matching of the component, and in prices, the prices of the receivers
+  // and then of the senders that go with it
+  static int[] solve(int[][] wants, long[][] costs, long[] prices, SolverWorkspace workspace) {
+    int n = wants.length;
+    Graph graph = new Graph(null);
+    graph.workspace = workspace;
+    for (int i = 0; i < n; i++) graph.addVertex(Integer.toString(i), null, false);
+    graph.freeze(wants, costs);
+    graph.findBestMatches(workspace);
+
+    int[] choice = new int[n];
+    for (int i = 0; i < n; i++) {
+      Graph.Vertex receiver = graph.receivers[i];
+      int k = 0;
+      while (graph.senderOf(graph.receiverEdge(receiver, k)) != workspace.match(receiver)) k++;
+      choice[i] = k;
+      prices[i] = workspace.price[receiver.index];
+      prices[n+i] = workspace.price[receiver.twin.index];
+    }
+    return choice;
+  }
+
+} // end TradeWorker
@@ -0,0 +1,22 @@
+// WantListException.java
+
+package tm;
+
+/* Thrown for a fatal error in the want list file itself (a malformed line,
+ * a bad option, ...).  The line number is 0 for an option that did not come
+ * from the file.
+ */
+public class WantListException extends TradeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int lineNumber;
+
+  public WantListException(String message, int lineNumber) {
+    super(lineNumber > 0 ? message + " (line " + lineNumber + ")" : message);
+    this.lineNumber = lineNumber;
+  }
+
+  public int getLineNumber() { return lineNumber; }
+
+} // end WantListException
@@ -0,0 +1,291 @@
+// WorkerPool.java
+
+package tm;
+import java.io.*;
+import java.net.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* The coordinator side of a distributed solve.  After the strongly
+ * connected components are found, no edge crosses between components, so
+ * each large one can be matched on its own by a TradeWorker process (on
+ * this host or another) and the matchings put back into the graph, ready
+ * for findCycles and displayMatches.  The small components, and any the
+ * workers fail on, are left unmatched for the local solve to finish.
+ *
+ * Each worker has a thread here that takes components from a shared queue
+ * and sends them one at a time.  If a worker crashes or its connection
+ * drops, the component it was solving goes back on the queue for another
+ * worker (up to MAX_ATTEMPTS times), and that worker is not used again.
+ * A worker that stops answering (see TradeWorker.KEEP_ALIVE) for
+ * TIMEOUT_MILLIS is given up on too, but its component is left for the
+ * local solve, since another worker might hang on it just the same.
+ */
+final class WorkerPool {
+
+  // smaller components are quicker to solve locally than to ship
+  static final int MIN_RECEIVERS = 500;
+  static final int MAX_ATTEMPTS = 3;
+  static final int TIMEOUT_MILLIS = 60000;
+
+  private final List< InetSocketAddress > addresses;
+  private final List< Process > processes = new ArrayList< Process >();
+  private final String secret; // see TradeWorker
+
+  // statistics for the report
+  int components, solved, redispatched;
+
+  WorkerPool(List< InetSocketAddress > addresses, String secret) {
+    this.addresses = new ArrayList< InetSocketAddress >(addresses);
+    this.secret = secret;
+  }
+
+  // Parses a comma separated list of host:port addresses.
+  static WorkerPool connect(String list) {
+    List< InetSocketAddress > addresses = new ArrayList< InetSocketAddress >();
+    for (String address : list.split(",")) {
+      int colon = address.lastIndexOf(':');
+      if (colon <= 0 || !address.substring(colon+1).matches("\\d+"))
+        throw new IllegalArgumentException("Bad worker address \"" + address + "\"");
+      addresses.add(new InetSocketAddress(address.substring(0, colon),
+                                          Integer.parseInt(address.substring(colon+1))));
+    }
+    return new WorkerPool(addresses, TradeWorker.secret());
+  }
+
+  // Starts n worker JVMs on this host, with the same java and classpath as
+  // this one, that only listen on the loopback address and only take
+  // requests with a secret made up for them.  close() stops them.  Fails,
+  // stopping them all, if one has not started within TIMEOUT_MILLIS.
+  static WorkerPool launch(int n) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    String classpath = System.getProperty("java.class.path");
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    StringBuilder secret = new StringBuilder();
+    for (byte b : random) secret.append(String.format("%02x", b & 0xff));
+    WorkerPool pool = new WorkerPool(new ArrayList< InetSocketAddress >(), secret.toString());
+    try {
+      for (int i = 0; i < n; i++) {
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, "tm.TradeWorker",
+                                                    "--bind=" + LOOPBACK);
+        builder.environment().put(TradeWorker.SECRET_VARIABLE, pool.secret);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        pool.processes.add(process);
+
+        // the worker's first line gives its port; the rest of its output is
+        // passed on, so it never blocks on a full pipe
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        final BlockingQueue< String > firstLine = new ArrayBlockingQueue< String >(1);
+        Thread drain = new Thread(new Runnable() {
+          public void run() {
+            try {
+              String s = output.readLine();
+              firstLine.add(s == null ? "" : s);
+              for (s = output.readLine(); s != null; s = output.readLine())
+                System.err.println(s);
+            }
+            catch (IOException e) {
+              firstLine.offer("");
+            }
+          }
+        });
+        drain.setDaemon(true);
+        drain.start();
+
+        // a worker that hangs before it prints its port is given up on like
+        // one that stops answering (the catch below destroys it)
+        String line;
+        try {
+          line = firstLine.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+          throw new InterruptedIOException("interrupted while starting workers");
+        }
+        if (line == null)
+          throw new IOException("worker did not start within " + TIMEOUT_MILLIS/1000 + " seconds");
+        String prefix = "TradeWorker listening on port ";
+        if (!line.startsWith(prefix) || !line.substring(prefix.length()).matches("\\d{1,5}"))
+          throw new IOException("worker did not start" + (line.length() == 0 ? "" : ": " + line));
+        pool.addresses.add(new InetSocketAddress(LOOPBACK, Integer.parseInt(line.substring(prefix.length()))));
+      }
+    }
+    catch (IOException e) {
+      pool.close();
+      throw e;
+    }
+    return pool;
+  }
+
+  static final String LOOPBACK = "127.0.0.1";
+
+  void close() {
+    for (Process process : processes) process.destroy();
+    processes.clear();
+  }
+
+  //////////////////////////////////////////////////////////////////////
+
+  private static class Task {
+    Graph.Vertex[] receivers;
+    int[][] wants;   // local sender numbers
+    long[][] costs;
+    int[] choice;    // the result
+    long[] prices;   // of the receivers, then of their senders
+    int attempts = 0;
+  }
+
+  private final LinkedList< Task > queue = new LinkedList< Task >();
+  private int inFlight = 0;
+
+  private synchronized Task take() throws InterruptedException {
+    // a task in flight may yet come back, if its worker fails
+    while (queue.isEmpty() && inFlight > 0) wait();
+    if (queue.isEmpty()) return null;
+    inFlight++;
+    return queue.removeFirst();
+  }
+
+  private synchronized void finished(Task task, boolean failed) {
+    inFlight--;
+    if (failed) {
+      if (task.attempts < MAX_ATTEMPTS) {
+        queue.addFirst(task);
+        redispatched++;
+      }
+    }
+    notifyAll();
+  }
+
+  // Matches every component of at least MIN_RECEIVERS unmatched receivers
+  // that a worker solves.  Returns the number of receivers matched.
+  int solve(Graph graph, SolverWorkspace workspace) {
+    List< Task > tasks = new ArrayList< Task >();
+    for (List< Graph.Vertex > receivers : graph.components(workspace)) {
+      if (receivers.size() < MIN_RECEIVERS || workspace.match(receivers.get(0)) != null) continue;
+      tasks.add(task(graph, workspace, receivers));
+    }
+    if (tasks.isEmpty()) return 0;
+    components += tasks.size();
+
+    // the biggest first, so one of them is not left to finish last
+    Collections.sort(tasks, new Comparator< Task >() {
+      public int compare(Task a, Task b) { return b.receivers.length - a.receivers.length; }
+    });
+    queue.clear();
+    queue.addAll(tasks);
+    inFlight = 0;
+
+    List< Thread > threads = new ArrayList< Thread >();
+    for (final InetSocketAddress address : addresses) {
+      Thread thread = new Thread(new Runnable() {
+        public void run() { work(address); }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    queue.clear(); // any left over are solved locally
+
+    // put the matchings into the graph, on this thread
+    int matched = 0;
+    for (Task task : tasks) {
+      if (task.choice == null) continue;
+      solved++;
+      for (int i = 0; i < task.receivers.length; i++) {
+        Graph.Vertex receiver = task.receivers[i];
+        int edge = workspace.receiverEdge(receiver, task.choice[i]);
+        workspace.setMatch(receiver, graph.senderOf(edge), graph.costOf(edge));
+        workspace.price[receiver.index] = task.prices[i];
+        workspace.price[receiver.twin.index] = task.prices[task.receivers.length + i];
+      }
+      matched += task.receivers.length;
+    }
+    return matched;
+  }
+
+  private Task task(Graph graph, SolverWorkspace workspace, List< Graph.Vertex > receivers) {
+    Task task = new Task();
+    int n = receivers.size();
+    task.receivers = receivers.toArray(new Graph.Vertex[n]);
+    Map< Graph.Vertex, Integer > number = new HashMap< Graph.Vertex, Integer >();
+    for (int i = 0; i < n; i++) number.put(task.receivers[i].twin, i);
+
+    task.wants = new int[n][];
+    task.costs = new long[n][];
+    for (int i = 0; i < n; i++) {
+      Graph.Vertex receiver = task.receivers[i];
+      task.wants[i] = new int[receiver.degree];
+      task.costs[i] = new long[receiver.degree];
+      for (int k = 0; k < receiver.degree; k++) {
+        int edge = workspace.receiverEdge(receiver, k);
+        task.wants[i][k] = number.get(graph.senderOf(edge));
+        task.costs[i][k] = graph.costOf(edge);
+      }
+    }
+    return task;
+  }
+
+  // the thread for one worker, until the queue is empty or the worker fails
+  private void work(InetSocketAddress address) {
+    Socket socket = null;
+    try {
+      socket = new Socket();
+      socket.connect(address, TIMEOUT_MILLIS);
+      socket.setSoTimeout(TIMEOUT_MILLIS);
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      for (Task task = take(); task != null; task = take()) {
+        boolean failed = true;
+        task.attempts++;
+        try {
+          TradeWorker.writeComponent(out, secret, task.wants, task.costs);
+          out.flush();
+          int n = in.readInt();
+          while (n == TradeWorker.KEEP_ALIVE) n = in.readInt();
+          if (n != task.receivers.length) throw new IOException("bad response");
+          int[] choice = new int[n];
+          for (int i = 0; i < n; i++) {
+            choice[i] = in.readInt();
+            if (choice[i] < 0 || choice[i] >= task.wants[i].length) throw new IOException("bad response");
+          }
+          long[] prices = new long[2*n];
+          for (int i = 0; i < 2*n; i++) prices[i] = in.readLong();
+          task.prices = prices;
+          task.choice = choice;
+          failed = false;
+        }
+        catch (SocketTimeoutException e) {
+          task.attempts = MAX_ATTEMPTS; // for the local solve
+          throw new IOException("no answer for " + TIMEOUT_MILLIS/1000 + " seconds");
+        }
+        finally {
+          finished(task, failed);
+        }
+      }
+    }
+    catch (IOException e) {
+      System.err.println("Worker " + address + " failed: " + e.getMessage());
+    }
+    catch (InterruptedException e) {
+      // give up on this worker
+    }
+    finally {
+      if (socket != null) {
+        try { socket.close(); } catch (IOException e) {}
+      }
+    }
+  }
+
+} // end WorkerPool